@@ -0,0 +1,270 @@
+package com.tzgames.ringer.activities;
+
+import android.database.Cursor;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import com.google.android.material.snackbar.Snackbar;
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.Toolbar;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+
+import com.tzgames.ringer.R;
+import com.tzgames.ringer.data.ContactsManager;
+import com.tzgames.ringer.data.ContactsManager.CustomRingerPerson;
+import com.tzgames.ringer.data.ContactsSync;
+import com.tzgames.ringer.data.VibrationsManager;
+import com.tzgames.ringer.views.ImportContactAdapter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Activity that lets the user select several address book contacts at once and adds all of them
+ * as custom contacts with a single write. Contacts are read with a narrow projection on a
+ * background thread, one page at a time as the user scrolls. The cursor stays open between
+ * pages, so each page continues where the last one stopped instead of skipping rows again.
+ *
+ * The maximum number of contacts that may be selected is passed with EXTRA_MAX_CONTACTS
+ * (negative means unlimited).
+ */
+public class ContactImportActivity extends AppCompatActivity {
+    /** Debug Tag */
+    private static final String TAG = "ContactImport";
+
+    /** Intent extra: how many contacts may be selected. Negative for unlimited */
+    public static final String EXTRA_MAX_CONTACTS = "MaxContacts";
+
+    /** Number of address book contacts read per page */
+    private static final int PAGE_SIZE = 50;
+
+    /** Only the columns that are shown or stored */
+    private static final String[] PROJECTION = {
+            ContactsContract.Contacts._ID,
+            ContactsContract.Contacts.DISPLAY_NAME,
+            ContactsContract.Contacts.PHOTO_THUMBNAIL_URI,
+            ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP
+    };
+
+    /** Runs the contact queries */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /** Contacts with a phone number, positioned at the last row read. Null before the first page
+     * and after the last one. Only touched on the executor */
+    private Cursor cursor = null;
+
+    /** Adapter of the list of address book contacts */
+    private ImportContactAdapter adapter;
+
+    /** Contact ids that already have a custom ringtone. Hidden from the list */
+    private HashSet<Long> existingIds;
+
+    /** Names of custom contacts whose contact id is not known. Hidden from the list */
+    private HashSet<String> existingNames;
+
+    /** How many contacts may be selected. Negative for unlimited */
+    private int maxContacts;
+
+    /** Whether a page is being loaded right now */
+    private boolean loading = false;
+
+    /** Whether the last page was read */
+    private boolean reachedEnd = false;
+
+    /**
+     * Creates the toolbar and the list, then loads the first page of contacts.
+     */
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_contact_import);
+
+        Toolbar tb = findViewById(R.id.toolbar_import);
+        setSupportActionBar(tb);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+            getSupportActionBar().setDisplayShowHomeEnabled(true);
+        }
+
+        maxContacts = getIntent().getIntExtra(EXTRA_MAX_CONTACTS, -1);
+        existingIds = new HashSet<>(ContactsManager.getAllContactIds(this));
+        existingNames = new HashSet<>(ContactsManager.getNamesWithoutContactId(this));
+
+        adapter = new ImportContactAdapter(this, new ImportContactAdapter.SelectionPolicy() {
+            @Override
+            public boolean canSelectMore(int selectedCount) {
+                if (maxContacts < 0 || selectedCount < maxContacts) return true;
+                showSnackbar(R.string.import_limit_reached);
+                return false;
+            }
+        });
+
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        RecyclerView recyclerView = findViewById(R.id.import_recycler_view);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setAdapter(adapter);
+
+        // load the next page once the user scrolled close to the end of the loaded contacts
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView view, int dx, int dy) {
+                if (layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - PAGE_SIZE / 2)
+                    loadNextPage();
+            }
+        });
+        loadNextPage();
+    }
+
+    @Override
+    protected void onDestroy() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeCursor();
+            }
+        });
+        executor.shutdown();
+        super.onDestroy();
+    }
+
+    /**
+     * Read the next page of contacts in the background and append it to the list.
+     */
+    private void loadNextPage() {
+        if (loading || reachedEnd) return;
+        loading = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<ImportContactAdapter.Entry> page = new ArrayList<>();
+                final int rows = queryPage(page);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) return;
+                        reachedEnd = rows < PAGE_SIZE;
+                        loading = false;
+                        adapter.addPage(page);
+
+                        // every contact of this page was already added, keep going
+                        if (page.isEmpty()) loadNextPage();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Read the next page of address book contacts that have a phone number. The query runs with
+     * the first page. Runs in the background.
+     * @param page Receives the contacts that are not custom contacts yet
+     * @return Number of rows read, including skipped custom contacts. Less than PAGE_SIZE once
+     *         the end was reached
+     */
+    private int queryPage(List<ImportContactAdapter.Entry> page) {
+        int rows = 0;
+        try {
+            if (cursor == null) {
+                cursor = getContentResolver().query(ContactsContract.Contacts.CONTENT_URI,
+                        PROJECTION, ContactsContract.Contacts.HAS_PHONE_NUMBER + "=1", null,
+                        ContactsContract.Contacts.DISPLAY_NAME + " COLLATE LOCALIZED ASC");
+                if (cursor == null) return 0;
+            }
+            while (rows < PAGE_SIZE && cursor.moveToNext()) {
+                rows++;
+                long contactId = cursor.getLong(0);
+                String name = cursor.getString(1);
+                if (name == null || existingIds.contains(contactId) || existingNames.contains(name))
+                    continue;
+                page.add(new ImportContactAdapter.Entry(contactId, name, cursor.getString(2),
+                        cursor.getLong(3)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to query contacts: " + e.toString());
+            closeCursor();
+            return 0;
+        }
+        if (rows < PAGE_SIZE) closeCursor();
+        return rows;
+    }
+
+    /**
+     * Close the contacts cursor, if open. Runs in the background.
+     */
+    private void closeCursor() {
+        if (cursor == null) return;
+        cursor.close();
+        cursor = null;
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.activity_import_menu, menu);
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    /**
+     * Click Handler for the add button. Stores all selected contacts with the default ringtone
+     * and vibration in one write, then returns to the calling activity.
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.import_add_btn) {
+            List<ImportContactAdapter.Entry> selected = adapter.getSelected();
+            if (selected.isEmpty()) {
+                showSnackbar(R.string.import_nothing_selected);
+                return true;
+            }
+
+            String defaultTone = ContactsManager.getDefaultToneString(this);
+            List<CustomRingerPerson> persons = new ArrayList<>(selected.size());
+            List<Long> contactIds = new ArrayList<>(selected.size());
+            for (ImportContactAdapter.Entry entry : selected) {
+                CustomRingerPerson person = new CustomRingerPerson();
+                person.name = entry.name;
+                person.photoURI = entry.photoURI;
+                person.photoTimestamp = entry.updated;
+                person.ringtoneURI = defaultTone;
+                person.messageTimestamps = new ArrayList<>();
+                person.vibrateURI = VibrationsManager.DEFAULT_VIBRATION;
+                person.contactId = entry.contactId;
+                persons.add(person);
+                contactIds.add(entry.contactId);
+            }
+            ContactsManager.putContacts(this, persons);
+            // phone numbers are read in the background so the sender can be recognized by them
+            ContactsSync.identify(contactIds);
+
+            setResult(RESULT_OK);
+            finish();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * If user presss back arrow in navigation bar, return without adding anything
+     */
+    @Override
+    public boolean onSupportNavigateUp() {
+        onBackPressed();
+        return true;
+    }
+
+    /**
+     * Shows a snackbar in activity
+     * @param id ID of strings.xml resource
+     */
+    private void showSnackbar(int id) {
+        Snackbar.make(findViewById(R.id.import_coordlayout),
+                getString(id),
+                Snackbar.LENGTH_LONG).show();
+    }
+}
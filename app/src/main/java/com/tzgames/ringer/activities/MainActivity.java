@@ -1,9 +1,11 @@
 package com.tzgames.ringer.activities;
 
 import com.google.android.material.snackbar.Snackbar;
+import com.tzgames.ringer.data.AlertChannels;
 import com.tzgames.ringer.data.BillingManager;
 import com.tzgames.ringer.data.ContactsManager.CustomRingerPerson;
 import com.tzgames.ringer.data.ContactsManager;
+import com.tzgames.ringer.data.ContactsSync;
 import com.tzgames.ringer.R;
 import com.tzgames.ringer.views.MainPagerAdapter;
 import com.tzgames.ringer.data.VibrationsManager;
@@ -12,7 +14,7 @@ import android.Manifest;
 import android.app.AlertDialog;
 import android.content.ComponentName;
 import android.content.Context;
-import android.os.Handler;
+import android.os.Build;
 import androidx.annotation.NonNull;
 import com.google.android.material.tabs.TabLayout;
 import androidx.core.content.ContextCompat;
@@ -21,18 +23,14 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import androidx.preference.PreferenceManager;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.ContactsContract;
-import android.provider.Settings;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import androidx.core.app.ActivityCompat;
 import androidx.viewpager.widget.ViewPager;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
-import android.text.TextUtils;
 import android.util.Log;
 import android.view.ContextThemeWrapper;
 import android.view.Menu;
@@ -40,11 +38,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-
 import static com.tzgames.ringer.activities.PermissionsActivity.isPackageInstalled;
-import static com.tzgames.ringer.views.MainPagerAdapter.POSITION_CONTACTS_FRAG;
-import static com.tzgames.ringer.views.MainPagerAdapter.POSITION_DEFAULT_FRAG;
 
 /**
  * MainActivity that is in charge of the majority of app logic.
@@ -55,16 +49,16 @@ import static com.tzgames.ringer.views.MainPagerAdapter.POSITION_DEFAULT_FRAG;
  * DefaultFragment - Has options to set default ring/vibration patterns
  * Help - Help screen for advice / contact developer
  *
- * These fragments are managed by MainPagerAdapter and are updated by MainActivity when new data
- * becomes available.
+ * These fragments are managed by MainPagerAdapter and are updated when ContactsManager publishes
+ * changes to the contacts or defaults.
  *
  * MainActivity also checks if correct permissions are set and prompts user if not set.
  */
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MAINACT";
 
-    /** Result for when user picks contact */
-    private final static int RESULT_PICK_CONTACT = 1;
+    /** Result for when user picked contacts in ContactImportActivity */
+    private final static int RESULT_IMPORT_CONTACTS = 1;
 
     /** Result for when user picks ringtone */
     private final static int RESULT_PICK_TONE = 2;
@@ -97,8 +91,8 @@ public class MainActivity extends AppCompatActivity {
     /** Whatsapp Vibration / Notification tone settings activity */
     public static final String WHATSAPP_SETTINGS = "com.whatsapp.SettingsNotifications";
 
-    /** Contact that is being edited currently */
-    private String choosingContact = "null";
+    /** Id of the contact that is being edited currently */
+    private long choosingContactId = 0;
 
     /** Bool whether user is in Android settings, trying to enable service */
     private boolean promptingNotificationListener = false;
@@ -109,6 +103,10 @@ public class MainActivity extends AppCompatActivity {
     /** Billing Manager used to purchase premium or check if premium is available */
     private BillingManager billingManager;
 
+    /** Brings the user back here once the service was enabled in the Android settings.
+     * TODO: User reported that automatic redirect from Settings doesn't work on Redmi Phone */
+    private NotificationAccessWatcher accessWatcher;
+
     /**
      * Initializes MainActivity.
      * Creates BillingManager to check if premium was bought, sets Toolbar with TabLayout,
@@ -123,6 +121,7 @@ public class MainActivity extends AppCompatActivity {
 
         billingManager = new BillingManager();
         billingManager.connectToGoogle(this);
+        accessWatcher = new NotificationAccessWatcher(this, MainActivity.class);
 
         Toolbar bar = findViewById(R.id.my_toolbar);
         bar.setTitle(getString(R.string.app_name));
@@ -142,11 +141,12 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View view) {
                 // discriminate against users who didn't buy premium. They are only allowed 2 contacts.
-                if (ContactsManager.getAllContactNames(view.getContext()).size() < 2
-                        || billingManager.isPremium()) {
-                    Intent contactPickerIntent = new Intent(Intent.ACTION_PICK,
-                            ContactsContract.CommonDataKinds.Phone.CONTENT_URI);
-                    startActivityForResult(contactPickerIntent, RESULT_PICK_CONTACT);
+                int count = ContactsManager.getCustomContactCount(view.getContext());
+                if (count < 2 || billingManager.isPremium()) {
+                    Intent importIntent = new Intent(getApplicationContext(), ContactImportActivity.class);
+                    importIntent.putExtra(ContactImportActivity.EXTRA_MAX_CONTACTS,
+                            billingManager.isPremium() ? -1 : 2 - count);
+                    startActivityForResult(importIntent, RESULT_IMPORT_CONTACTS);
                 }
                 else {
                     buildInformationDialog(getString(R.string.not_premium_dialog_title),
@@ -180,13 +180,33 @@ public class MainActivity extends AppCompatActivity {
             checkPermissions();
         }
         promptingNotificationListener = false;
+        ContactsSync.start(this);
         super.onResume();
     }
 
+    /**
+     * Stop receiving contact changes, since they would update this activity's views, and stop
+     * watching the notification listener setting.
+     */
+    @Override
+    protected void onDestroy() {
+        mPagerAdapter.release();
+        accessWatcher.stop();
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.activity_main_menu, menu);
+
+        // vibrations only go through notification channels on Android 8+
+        MenuItem direct = menu.findItem(R.id.action_direct_vibration);
+        direct.setVisible(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O);
+        direct.setChecked(VibrationsManager.isDirectVibration(this));
+        MenuItem fused = menu.findItem(R.id.action_fused_channels);
+        fused.setVisible(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O);
+        fused.setChecked(AlertChannels.isFusedChannels(this));
         return true;
     }
 
@@ -222,7 +242,7 @@ public class MainActivity extends AppCompatActivity {
                         new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialogInterface, int i) {
-                                pickRingtone(ContactsManager.getDefaultContactName());
+                                pickRingtone(ContactsManager.getDefaultContactId());
                             }
                         }
                 ).show();
@@ -231,6 +251,16 @@ public class MainActivity extends AppCompatActivity {
                 // show Dialog that will lead user to WhatsApp settings to disable ringtones there
                 buildWhatsAppDisableDialog().show();
                 return true;
+            case R.id.action_direct_vibration:
+                // toggle playing vibrations without posting a notification
+                item.setChecked(!item.isChecked());
+                VibrationsManager.setDirectVibration(this, item.isChecked());
+                return true;
+            case R.id.action_fused_channels:
+                // toggle playing tone and vibration through one combined channel
+                item.setChecked(!item.isChecked());
+                AlertChannels.setFusedChannels(this, item.isChecked());
+                return true;
             case R.id.action_enable_notification_service:
                 // show Dialog that will lead user to settings where he can enable listener service
                 buildNotificationServiceAlertDialog();
@@ -285,7 +315,7 @@ public class MainActivity extends AppCompatActivity {
 
     /**
      * Handles actions that finished outside of this activity. Handles: 
-     * - RESULT_PICK_CONTACT    (user picked contact, Android)
+     * - RESULT_IMPORT_CONTACTS (user added contacts, ContactImportActivity)
      * - RESULT_PICK_TONE       (user picked ringtone, Android)
      * - RESULT_PICK_VIB        (user picked vibration, VibrationPickerActivity)
      * - RESULT_ENABLED_SERVICE (user enabled NotificationListener service from Android Settings
@@ -302,58 +332,27 @@ public class MainActivity extends AppCompatActivity {
         super.onActivityResult(requestCode, resultCode, data);
 
         // check whether the result is ok
-        if (resultCode == RESULT_OK && requestCode == RESULT_PICK_CONTACT) {
-            Uri uri = data.getData();
-            Cursor cursor;
-            try {
-                //Query the content uri
-                if (uri == null) throw new Exception("Returned URI is null");
-
-                cursor = getContentResolver().query(
-                        uri, null, null, null, null);
-
-                if (cursor == null) throw new Exception("Cursor is null");
-                if (cursor.getCount() <= 0) throw new Exception("Cursor's length is not > 0");
-
-                cursor.moveToFirst();
-                String name = cursor.getString(cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME));
-                String photoURI = cursor.getString(cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.PHOTO_THUMBNAIL_URI));
-
-                CustomRingerPerson person = new CustomRingerPerson();
-                person.name = name;
-                person.photoURI = photoURI;
-                person.ringtoneURI = ContactsManager.getDefaultToneString(this);
-                person.messageTimestamps = new ArrayList<>();
-                person.vibrateURI = VibrationsManager.DEFAULT_VIBRATION;
-
-                ContactsManager.putContact(this, person);
-
-                mPagerAdapter.setDirty(POSITION_CONTACTS_FRAG);
-                cursor.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        if (resultCode == RESULT_OK && requestCode == RESULT_IMPORT_CONTACTS) {
+            // ContactImportActivity already saved the new contacts, the list picks them up itself
+            Log.d(TAG, "Imported contacts");
         } else if (resultCode == RESULT_OK && requestCode == RESULT_PICK_TONE) {
             Uri ringtoneURI = data.getParcelableExtra(RingtoneManager.EXTRA_RINGTONE_PICKED_URI);
-            CustomRingerPerson person = ContactsManager.getContact(this, choosingContact);
-            person.ringtoneURI = ringtoneURI != null? ringtoneURI.toString() : ContactsManager.NONE_RINGTONE_ID;
-            ContactsManager.putContact(this, person);
-            mPagerAdapter.setDirty(POSITION_CONTACTS_FRAG);
-            if (choosingContact.equals(ContactsManager.getDefaultContactName()))
-                mPagerAdapter.setDirty(POSITION_DEFAULT_FRAG);
+            CustomRingerPerson person = ContactsManager.getContact(this, choosingContactId);
+            // the contact may have been removed in the meantime
+            if (person != null) {
+                person.ringtoneURI = ringtoneURI != null? ringtoneURI.toString() : ContactsManager.NONE_RINGTONE_ID;
+                ContactsManager.putContact(this, person);
+            }
         }
         else if (resultCode == RESULT_OK && requestCode == RESULT_PICK_VIB) {
             Uri d = data.getData();
-            if (d != null) {
+            CustomRingerPerson person = ContactsManager.getContact(this, choosingContactId);
+            if (d != null && person != null) {
                 String newTone = d.toString();
-                CustomRingerPerson person = ContactsManager.getContact(this, choosingContact);
                 person.vibrateURI = newTone;
                 ContactsManager.putContact(this, person);
-                mPagerAdapter.setDirty(POSITION_CONTACTS_FRAG);
-                if (choosingContact.equals(ContactsManager.getDefaultContactName()))
-                    mPagerAdapter.setDirty(POSITION_DEFAULT_FRAG);
 
-                Log.d(TAG, "Successfully aquired and set new uri [" + newTone + "] for vibration for " + choosingContact);
+                Log.d(TAG, "Successfully aquired and set new uri [" + newTone + "] for vibration for " + person.name);
             }
             else {
                 Log.d(TAG, "Returned picked virbation pattern uri was null... aborting.");
@@ -382,32 +381,35 @@ public class MainActivity extends AppCompatActivity {
 
     /**
      * Start the activity flow that enables user to pick a ringtone. Once this ringtone has been 
-     * picked, it will be assigned to nameOfContact. 
-     * @param nameOfContact The contact for whom the user is choosing a new ringtone
+     * picked, it will be assigned to the contact.
+     * @param contactId Id of the contact for whom the user is choosing a new ringtone
      */
-    public void pickRingtone(String nameOfContact) {
+    public void pickRingtone(long contactId) {
+        CustomRingerPerson person = ContactsManager.getContact(getApplicationContext(), contactId);
+        if (person == null) return;
         Intent intent = new Intent(RingtoneManager.ACTION_RINGTONE_PICKER);
         intent.putExtra(RingtoneManager.EXTRA_RINGTONE_TYPE, RingtoneManager.TYPE_NOTIFICATION);
         intent.putExtra(RingtoneManager.EXTRA_RINGTONE_TITLE, "Select Tone");
         intent.putExtra(RingtoneManager.EXTRA_RINGTONE_EXISTING_URI,
-                Uri.parse(ContactsManager.getContact(getApplicationContext(), nameOfContact).ringtoneURI));
+                Uri.parse(person.ringtoneURI));
         intent.putExtra(RingtoneManager.EXTRA_RINGTONE_SHOW_SILENT, true);
         intent.putExtra(RingtoneManager.EXTRA_RINGTONE_SHOW_DEFAULT, true);
-        choosingContact = nameOfContact;
+        choosingContactId = contactId;
         startActivityForResult(intent, RESULT_PICK_TONE);
     }
 
     /**
      * Start the activity flow that enables user to pick a vibration pattern. Once this vib has been 
-     * picked, it will be assigned to nameOfContact. 
-     * @param nameOfContact The contact for whom the user is choosing a new vibration pattern
+     * picked, it will be assigned to the contact.
+     * @param contactId Id of the contact for whom the user is choosing a new vibration pattern
      */
-    public void pickVibrationPattern(String nameOfContact) {
+    public void pickVibrationPattern(long contactId) {
+        CustomRingerPerson person = ContactsManager.getContact(getApplicationContext(), contactId);
+        if (person == null) return;
         Intent intent = new Intent(getApplicationContext(), VibrationPickerActivity.class);
-        intent.putExtra("CurrentPattern",
-                ContactsManager.getContact(getApplicationContext(), nameOfContact).vibrateURI);
+        intent.putExtra("CurrentPattern", person.vibrateURI);
         intent.putExtra("EnableCustom", billingManager.isPremium());
-        choosingContact = nameOfContact;
+        choosingContactId = contactId;
         startActivityForResult(intent, RESULT_PICK_VIB);
     }
 
@@ -417,21 +419,7 @@ public class MainActivity extends AppCompatActivity {
      * Verifies if the notification listener service is enabled.
      */
     public static boolean isNotificationServiceEnabled(Context ctx){
-        String pkgName = ctx.getPackageName();
-        final String flat = Settings.Secure.getString(ctx.getContentResolver(),
-                "enabled_notification_listeners");
-        if (!TextUtils.isEmpty(flat)) {
-            final String[] names = flat.split(":");
-            for (String name : names) {
-                final ComponentName cn = ComponentName.unflattenFromString(name);
-                if (cn != null) {
-                    if (TextUtils.equals(pkgName, cn.getPackageName())) {
-                        return true;
-                    }
-                }
-            }
-        }
-        return false;
+        return NotificationAccessWatcher.isEnabled(ctx);
     }
 
     /**
@@ -488,44 +476,12 @@ public class MainActivity extends AppCompatActivity {
         alertDialogBuilder.setOnDismissListener(new DialogInterface.OnDismissListener() {
             @Override
             public void onDismiss(DialogInterface dialogInterface) {
-                promptNotificationSettings(MainActivity.this, MainActivity.class);
+                accessWatcher.prompt();
             }
         });
         alertDialogBuilder.create().show();
     }
 
-    /**
-     * Opens Android notification listener settings so that user can enable NotifyWho service there.
-     * Automatically redirects back to app once enabled.
-     * TODO: User reported that automatic redirect from Settings doesn't work on Redmi Phone
-     */
-    public static void promptNotificationSettings(final Context packageContext, final Class classs) {
-        Intent intent = new Intent("android.settings.ACTION_NOTIFICATION_LISTENER_SETTINGS");
-        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK 
-                | Intent.FLAG_ACTIVITY_NO_HISTORY 
-                | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
-
-        // check every 500ms if settings are enabled yet
-        final Handler handler = new Handler();
-        final Runnable checkSettings = new Runnable() {
-            @Override
-            public void run() {
-                if (isNotificationServiceEnabled(packageContext)) {
-                    Intent mainIntent = new Intent(packageContext, classs);
-                    mainIntent.addFlags(
-                            Intent.FLAG_ACTIVITY_CLEAR_TOP);
-                    mainIntent.putExtra(SERVICE_ENABLED_FINISHED, RESULT_ENABLED_SERVICE);
-                    packageContext.startActivity(mainIntent);
-                    return;
-                }
-                handler.postDelayed(this, 500);
-            }
-        };
-        handler.postDelayed(checkSettings, 1000);
-
-        packageContext.startActivity(intent);
-    }
-
     /**
      * Build a general Alert Dialog that displays some information. 
      * @param messageId the string resource id 
@@ -0,0 +1,116 @@
+package com.tzgames.ringer.activities;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.Log;
+
+import static com.tzgames.ringer.activities.MainActivity.RESULT_ENABLED_SERVICE;
+import static com.tzgames.ringer.activities.MainActivity.SERVICE_ENABLED_FINISHED;
+
+/**
+ * Opens the Android notification listener settings and brings the user back to an activity as
+ * soon as NotifyWho's listener was enabled there. Instead of polling, a ContentObserver on the
+ * secure setting that lists the enabled listeners reports every change, and the redirect fires
+ * once when our package shows up in it.
+ *
+ * The owning activity must call stop() in onDestroy. The observer stays registered while the
+ * activity is stopped, since that is when the user is in the settings.
+ */
+class NotificationAccessWatcher {
+    /** Debug Tag */
+    private static final String TAG = "NotificationAccess";
+
+    /** Secure setting with the flattened ComponentNames of the enabled listeners, ':' separated */
+    private static final String ENABLED_LISTENERS = "enabled_notification_listeners";
+
+    /** Raw setting value of the last check. Only touched on the main thread */
+    private static String lastFlat = null;
+
+    /** Whether our package is in lastFlat */
+    private static boolean lastEnabled = false;
+
+    /** Activity that is brought back once the listener is enabled */
+    private final Activity activity;
+
+    /** Activity class that is started with SERVICE_ENABLED_FINISHED */
+    private final Class<? extends Activity> target;
+
+    /** Whether the observer is registered */
+    private boolean watching = false;
+
+    /** Checks the setting whenever it changes */
+    private final ContentObserver observer = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (!isEnabled(activity)) return;
+            stop();
+            Log.d(TAG, "Notification listener enabled, returning to " + target.getSimpleName());
+            Intent intent = new Intent(activity, target);
+            intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            intent.putExtra(SERVICE_ENABLED_FINISHED, RESULT_ENABLED_SERVICE);
+            activity.startActivity(intent);
+        }
+    };
+
+    NotificationAccessWatcher(Activity _activity, Class<? extends Activity> _target) {
+        activity = _activity;
+        target = _target;
+    }
+
+    /**
+     * Verifies if the notification listener service is enabled. The setting is only parsed again
+     * if it changed since the last check.
+     */
+    static boolean isEnabled(Context ctx) {
+        String flat = Settings.Secure.getString(ctx.getContentResolver(), ENABLED_LISTENERS);
+        if (lastFlat != null && lastFlat.equals(flat)) return lastEnabled;
+
+        boolean enabled = false;
+        if (!TextUtils.isEmpty(flat)) {
+            String pkgName = ctx.getPackageName();
+            for (String name : flat.split(":")) {
+                ComponentName cn = ComponentName.unflattenFromString(name);
+                if (cn != null && TextUtils.equals(pkgName, cn.getPackageName())) {
+                    enabled = true;
+                    break;
+                }
+            }
+        }
+        lastFlat = flat;
+        lastEnabled = enabled;
+        return enabled;
+    }
+
+    /**
+     * Open the notification listener settings and start watching for our listener to be enabled.
+     */
+    void prompt() {
+        Intent intent = new Intent("android.settings.ACTION_NOTIFICATION_LISTENER_SETTINGS");
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
+                | Intent.FLAG_ACTIVITY_NO_HISTORY
+                | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+
+        if (!watching) {
+            activity.getContentResolver().registerContentObserver(
+                    Settings.Secure.getUriFor(ENABLED_LISTENERS), false, observer);
+            watching = true;
+        }
+        activity.startActivity(intent);
+    }
+
+    /**
+     * Stop watching the setting. Safe to call if not watching.
+     */
+    void stop() {
+        if (!watching) return;
+        activity.getContentResolver().unregisterContentObserver(observer);
+        watching = false;
+    }
+}
@@ -37,6 +37,9 @@ public class PermissionsActivity extends AppCompatActivity {
     /** PermissionsActivity ViewPager */
     private IntroViewPager mPager;
 
+    /** Brings the user back here once the service was enabled in the Android settings */
+    private NotificationAccessWatcher accessWatcher;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -44,6 +47,16 @@ public class PermissionsActivity extends AppCompatActivity {
 
         mPager = findViewById(R.id.permissions_ViewPager);
         mPager.attachAdapter(getSupportFragmentManager());
+        accessWatcher = new NotificationAccessWatcher(this, PermissionsActivity.class);
+    }
+
+    /**
+     * Stop watching the notification listener setting.
+     */
+    @Override
+    protected void onDestroy() {
+        accessWatcher.stop();
+        super.onDestroy();
     }
 
     /*
@@ -83,7 +96,7 @@ public class PermissionsActivity extends AppCompatActivity {
      * Callback for buttonClick of NotificationListenerFragment. Launches Android Settings to enable service.
      */
     public void notificationFragmentClick() {
-        MainActivity.promptNotificationSettings(PermissionsActivity.this, PermissionsActivity.class);
+        accessWatcher.prompt();
     }
 
     /**
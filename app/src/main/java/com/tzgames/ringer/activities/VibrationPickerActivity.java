@@ -89,7 +89,7 @@ public class VibrationPickerActivity extends AppCompatActivity {
 
         // get all vibrations and put them in a list view so the user can select them
         ListView vibrationsList = findViewById(R.id.vibrations_list);
-        ArrayList<String> vibNames = new ArrayList<>(VibrationsManager.getVibrations(this).keySet());
+        ArrayList<String> vibNames = new ArrayList<>(VibrationsManager.getVibrationNames(this));
         final VibListItemAdapter adapter = new VibListItemAdapter(this, 0, vibNames,null);
         vibrationsList.setAdapter(adapter);
 
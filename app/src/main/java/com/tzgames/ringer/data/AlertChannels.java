@@ -0,0 +1,236 @@
+package com.tzgames.ringer.data;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioAttributes;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.preference.PreferenceManager;
+
+import com.tzgames.ringer.R;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Notification channels that play a ringtone and a vibration together (SDK >= 26). In fused mode
+ * (see setFusedChannels) an alert is a single post to the channel of its (ringtone, vibration)
+ * pair instead of playing a Ringtone and posting to the vibration's sound-less channel.
+ *
+ * The channel id is derived from the pair by channelIdFor(), which AlertProfile does once when it
+ * is compiled rather than per alert. Channels are created the first time a pair is played and are named after
+ * the tone and the vibration; a channel whose id is already known is not looked up again. Their
+ * last use is kept in memory and saved to a SharedPreferences file when a
+ * channel is created or evicted, or when it is older than SAVE_INTERVAL_MS, so playing an alert
+ * does not write to disk every time. The least recently used channels are deleted once there are
+ * more than MAX_CHANNELS, so the app stays far below the platform's per-app channel limit.
+ */
+public class AlertChannels {
+    /** Debug Tag */
+    private static final String TAG = "AlertChannels";
+
+    /** Prefix of all fused channel ids */
+    private static final String CHANNEL_PREFIX = "fused_";
+
+    /** SharedPreferences file holding the last use of each fused channel by channel id */
+    private static final String PREFS_NAME = "fused_channels";
+
+    /** Max number of fused channels that are kept */
+    private static final int MAX_CHANNELS = 24;
+
+    /** A channel's saved last use is only updated if it is at least this old */
+    private static final long SAVE_INTERVAL_MS = 60 * 60 * 1000;
+
+    /** Last use of each fused channel by channel id. Null until read from PREFS_NAME */
+    private static HashMap<String, Long> lastUse;
+
+    /** Last use of each fused channel as saved in PREFS_NAME */
+    private static HashMap<String, Long> savedUse;
+
+    /** Attributes of the channel sound */
+    private static final AudioAttributes NOTIFICATION_ATTRIBUTES = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_NOTIFICATION)
+            .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+            .build();
+
+    /**
+     * Returns whether alerts are played through fused channels.
+     */
+    public static boolean isFusedChannels(Context ctx) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && PreferenceManager.getDefaultSharedPreferences(ctx)
+                .getBoolean(ctx.getString(R.string.pref_fused_channels), false);
+    }
+
+    /**
+     * Enable or disable fused mode. See isFusedChannels.
+     */
+    public static void setFusedChannels(Context ctx, boolean fused) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+                .putBoolean(ctx.getString(R.string.pref_fused_channels), fused).apply();
+    }
+
+    /**
+     * Returns the id of the fused channel of a (ringtone, vibration) pair. The pattern is part of
+     * the id since channel settings can not change after creation.
+     * @param ringtoneURI Tone to play, or ContactsManager.NONE_RINGTONE_ID for no tone
+     * @param vibration The vibration to play
+     */
+    public static String channelIdFor(String ringtoneURI, VibrationsManager.Vibration vibration) {
+        return CHANNEL_PREFIX + hash(ringtoneURI + "|" + Arrays.toString(vibration.getPattern()));
+    }
+
+    /**
+     * Play a ringtone and a vibration with a single notification post, creating their channel
+     * if needed.
+     * @param channelId Id of the pair's channel, from channelIdFor()
+     * @param ringtoneURI Tone to play, or ContactsManager.NONE_RINGTONE_ID for no tone
+     * @param vibration The vibration to play
+     * @param notificationId Id of the notification to post
+     * @return True if posted. False if fused mode is not available, so the caller should play the
+     *         tone and vibration separately
+     */
+    public static boolean post(Context ctx, String channelId, String ringtoneURI,
+                               VibrationsManager.Vibration vibration, int notificationId) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return false;
+        if (!obtainChannel(ctx, channelId, ringtoneURI, vibration)) return false;
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(ctx, channelId)
+                .setSmallIcon(R.drawable.ic_notifications_active_black_24dp)
+                .setTimeoutAfter(3000)
+                .setAutoCancel(true);
+        NotificationManagerCompat.from(ctx).notify(notificationId, builder.build());
+        return true;
+    }
+
+    /**
+     * Make sure the channel of a (ringtone, vibration) pair exists, creating it if it is not
+     * known yet and deleting the least recently used channels if there are too many.
+     * @return False if the notification manager is not available
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private static synchronized boolean obtainChannel(Context ctx, String channelId,
+                                                      String ringtoneURI,
+                                                      VibrationsManager.Vibration vibration) {
+        NotificationManager manager =
+                (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (manager == null) {
+            Log.e(TAG, "Failed to get notification manager...");
+            return false;
+        }
+
+        SharedPreferences usage = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (lastUse == null) readUsage(usage);
+
+        // every channel in lastUse was created by us, only unknown ids need the lookup
+        boolean created = false;
+        if (!lastUse.containsKey(channelId) && manager.getNotificationChannel(channelId) == null) {
+            String title = toneTitle(ctx, ringtoneURI);
+            NotificationChannel channel = new NotificationChannel(channelId,
+                    "Alert: " + title + ", " + vibration.name,
+                    NotificationManager.IMPORTANCE_DEFAULT);
+            channel.setDescription("Tone: " + title + ", vibration: " + vibration.name);
+            if (ringtoneURI.equals(ContactsManager.NONE_RINGTONE_ID))
+                channel.setSound(null, null);
+            else
+                channel.setSound(Uri.parse(ringtoneURI), NOTIFICATION_ATTRIBUTES);
+            channel.enableVibration(vibration.duration > 0);
+            if (vibration.duration > 0) channel.setVibrationPattern(vibration.getPattern());
+            manager.createNotificationChannel(channel);
+            created = true;
+            Log.d(TAG, "Created channel " + channelId + " for " + vibration.name);
+        }
+
+        long now = System.currentTimeMillis();
+        lastUse.put(channelId, now);
+        Long saved = savedUse.get(channelId);
+        if (created || saved == null || now - saved >= SAVE_INTERVAL_MS) {
+            SharedPreferences.Editor editor = usage.edit();
+            // only a new channel can push the count over MAX_CHANNELS
+            if (created) evictChannels(manager, editor, channelId);
+            editor.putLong(channelId, now);
+            savedUse.put(channelId, now);
+            editor.apply();
+        }
+        return true;
+    }
+
+    /**
+     * Read the saved last use of all fused channels into lastUse and savedUse.
+     */
+    private static void readUsage(SharedPreferences usage) {
+        lastUse = new HashMap<>();
+        savedUse = new HashMap<>();
+        for (Map.Entry<String, ?> entry : usage.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof Long)) continue;
+            lastUse.put(entry.getKey(), (Long) entry.getValue());
+            savedUse.put(entry.getKey(), (Long) entry.getValue());
+        }
+    }
+
+    /**
+     * Delete the least recently used fused channels while there are more than MAX_CHANNELS.
+     * @param editor Receives the removal of the deleted channels
+     * @param keep Channel that was just used and must not be deleted
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private static void evictChannels(NotificationManager manager,
+                                      SharedPreferences.Editor editor, String keep) {
+        for (int excess = lastUse.size() - MAX_CHANNELS; excess > 0; excess--) {
+            String oldest = null;
+            long oldestTime = Long.MAX_VALUE;
+            for (Map.Entry<String, Long> entry : lastUse.entrySet()) {
+                if (entry.getKey().equals(keep)) continue;
+                if (entry.getValue() < oldestTime) {
+                    oldest = entry.getKey();
+                    oldestTime = entry.getValue();
+                }
+            }
+            if (oldest == null) break;
+            manager.deleteNotificationChannel(oldest);
+            lastUse.remove(oldest);
+            savedUse.remove(oldest);
+            editor.remove(oldest);
+            Log.d(TAG, "Deleted unused channel " + oldest);
+        }
+    }
+
+    /**
+     * Returns the title of a tone for channel names. Only called when a channel is created.
+     */
+    private static String toneTitle(Context ctx, String ringtoneURI) {
+        if (ringtoneURI.equals(ContactsManager.NONE_RINGTONE_ID)) return ringtoneURI;
+        try {
+            Ringtone ringtone = RingtoneManager.getRingtone(ctx, Uri.parse(ringtoneURI));
+            if (ringtone != null) return ringtone.getTitle(ctx);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to get title of " + ringtoneURI + ": " + e.toString());
+        }
+        return ringtoneURI;
+    }
+
+    /**
+     * Returns the first 16 hex digits of the SHA-1 of a string
+     */
+    private static String hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(s.hashCode());
+        }
+    }
+}
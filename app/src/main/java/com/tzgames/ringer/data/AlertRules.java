@@ -0,0 +1,180 @@
+package com.tzgames.ringer.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class that keeps track of alert rules: tones / vibrations that play when a message contains a
+ * keyword, when the sender matches a wildcard pattern, or when the group chat title matches a
+ * wildcard pattern. Rules are saved to disk like custom contacts.
+ *
+ * The rules are compiled into a RuleMatcher whenever they change, so every notification is
+ * evaluated in a single pass over its text regardless of the number of rules. The compiled
+ * snapshot is published atomically and can be read from any thread.
+ */
+public class AlertRules {
+    /** Debug Tag */
+    private static final String TAG = "AlertRules";
+
+    /** File where the rules are stored */
+    private static final String DATAFILE = "/data/rules.bin";
+
+    /** Rule matches if the message text contains the pattern */
+    public static final int TYPE_KEYWORD = RuleMatcher.TYPE_KEYWORD;
+
+    /** Rule matches if the sender name matches the wildcard pattern ('*' and '?') */
+    public static final int TYPE_SENDER = RuleMatcher.TYPE_SENDER;
+
+    /** Rule matches if the group chat title matches the wildcard pattern ('*' and '?') */
+    public static final int TYPE_CONVERSATION = RuleMatcher.TYPE_CONVERSATION;
+
+    /**
+     * A rule that assigns a tone and vibration to matching messages. Serialized to disk.
+     */
+    public static class AlertRule implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /** One of the TYPE_ constants */
+        public int type;
+
+        /** Keyword or wildcard pattern, matched ignoring case */
+        public String pattern;
+
+        /** The ringtone URI that plays for matching messages */
+        public String ringtoneURI;
+
+        /** The vibrate URI that plays for matching messages */
+        public String vibrateURI;
+    }
+
+    /**
+     * Immutable rule list together with its compiled matcher.
+     */
+    private static final class Compiled {
+        final List<AlertRule> rules;
+        final RuleMatcher matcher;
+
+        Compiled(List<AlertRule> _rules) {
+            rules = Collections.unmodifiableList(_rules);
+            int[] types = new int[_rules.size()];
+            String[] patterns = new String[_rules.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = _rules.get(i).type;
+                patterns[i] = _rules.get(i).pattern;
+            }
+            matcher = new RuleMatcher(types, patterns);
+        }
+    }
+
+    /** Current rules and matcher. Null until the data file was read */
+    private static volatile Compiled compiled;
+
+    /**
+     * Returns the current rules, reading the data file first if needed.
+     */
+    private static Compiled getCompiled(Context ctx) {
+        Compiled c = compiled;
+        if (c != null) return c;
+        synchronized (AlertRules.class) {
+            if (compiled == null) compiled = new Compiled(readDataFile(ctx));
+            return compiled;
+        }
+    }
+
+    /**
+     * Returns the rules in order of precedence. The list can not be modified.
+     */
+    public static List<AlertRule> getRules(Context ctx) {
+        return getCompiled(ctx).rules;
+    }
+
+    /**
+     * Replace all rules, then save to disk and recompile the matcher.
+     * @param rules The new rules. Earlier rules take precedence over later ones
+     */
+    public static synchronized void setRules(Context ctx, List<AlertRule> rules) {
+        ArrayList<AlertRule> copy = new ArrayList<>(rules);
+        writeDataFile(ctx, copy);
+        compiled = new Compiled(copy);
+    }
+
+    /**
+     * Add a rule with the lowest precedence.
+     */
+    public static synchronized void addRule(Context ctx, AlertRule rule) {
+        ArrayList<AlertRule> rules = new ArrayList<>(getRules(ctx));
+        rules.add(rule);
+        setRules(ctx, rules);
+    }
+
+    /**
+     * Remove a rule.
+     */
+    public static synchronized void removeRule(Context ctx, AlertRule rule) {
+        ArrayList<AlertRule> rules = new ArrayList<>(getRules(ctx));
+        if (rules.remove(rule)) setRules(ctx, rules);
+    }
+
+    /**
+     * Find the rule with the highest precedence that matches a message.
+     * @param sender Sender of the message. May be null
+     * @param conversation Title of the group chat. May be null
+     * @param text Text of the message. May be null
+     * @return The matching rule, or null if no rule matches
+     */
+    public static AlertRule match(Context ctx, String sender, String conversation,
+                                  CharSequence text) {
+        Compiled c = getCompiled(ctx);
+        if (c.rules.isEmpty()) return null;
+        int index = c.matcher.match(sender, conversation, text);
+        return index < 0 ? null : c.rules.get(index);
+    }
+
+    /**
+     * Loads the rules from disk. Returns an empty list if there are none yet.
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayList<AlertRule> readDataFile(Context context) {
+        File dataFile = new File(context.getExternalFilesDir(null), DATAFILE);
+        if (!dataFile.exists()) return new ArrayList<>();
+        try {
+            FileInputStream inputStream = new FileInputStream(dataFile);
+            ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
+            ArrayList<AlertRule> rules = (ArrayList<AlertRule>) objectInputStream.readObject();
+            objectInputStream.close();
+            inputStream.close();
+            return rules;
+        } catch (Exception e) {
+            Log.e(TAG, e.toString());
+            Log.e(TAG, "Rules data file is corrupt. Trying to delete it...");
+            if (dataFile.delete()) Log.i(TAG, "Data file deleted succesfully!");
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Saves the rules to disk.
+     */
+    private static void writeDataFile(Context context, ArrayList<AlertRule> rules) {
+        File dataFile = new File(context.getExternalFilesDir(null), DATAFILE);
+        try {
+            FileOutputStream outputStream = new FileOutputStream(dataFile);
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+            objectOutputStream.writeObject(rules);
+            objectOutputStream.close();
+            outputStream.close();
+        } catch (Exception e) {
+            Log.e(TAG, e.toString());
+        }
+    }
+}
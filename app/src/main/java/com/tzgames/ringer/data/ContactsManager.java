@@ -2,6 +2,12 @@ package com.tzgames.ringer.data;
 
 import android.content.Context;
 import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import java.io.File;
@@ -11,9 +17,13 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -25,25 +35,112 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  *
  * In addition to maintaining user selected contacts, this class maintains a DEFAULT_CONTACT_ID
  * who is assigned default ringtones and is hidden from the user's custom contacts.
+ *
+ * Every change to the list is published as a ContactChange to the registered
+ * OnContactsChangedListeners. Changes are collected and delivered on the main thread in one batch
+ * per message loop iteration, so a burst of writes results in a single callback.
+ *
+ * Every contact has a stable numeric id: its ContactsContract contact id if it was known when the
+ * contact was added, otherwise a generated negative id. Contacts are stored by id in a
+ * LongHashMap, with secondary indexes from name, phone number, lookup key and contact id to id,
+ * so the sender of a notification that carries tel: or contact URIs is recognized even if the
+ * contact was renamed. Reverse indexes from vibration name and ringtone URI to ids, and counts of
+ * custom contacts, are kept up to date with every recorded change.
  */
 public class ContactsManager {
     private static final String TAG = "ContactsManager";
     private static final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private static LinkedHashMap<String, CustomRingerPerson> contactList = null;
-    private static final String DATAFILE = "/data/data7.bin";
+    private static final String DATAFILE = "/data/data8.bin";
+    private static final String LEGACY_DATAFILE = "/data/data7.bin";
     private static final String DEFAULT_CONTACT_ID = "__DEFAULT_RINGTONE__83242088AA";
+
+    /** Id of the DEFAULT_CONTACT_ID person */
+    private static final long DEFAULT_ID = -1;
     public static final String NONE_RINGTONE_ID = "No Tone (Silent)";
+    private static final String CONTACTS_URI = ContactsContract.Contacts.CONTENT_URI.toString();
+
+    /** Incremented for every published change and whenever the phone numbers or the schedule of
+     * a contact change. Message timestamps alone do not change it, so views and caches can rely on it to
+     * skip redundant refreshes */
+    private static long version = 0;
+
+    /** All contacts by id. Null until the data file was read */
+    private static LongHashMap<CustomRingerPerson> contacts = null;
+
+    /** Ids of all contacts in the order they were added */
+    private static final ArrayList<Long> order = new ArrayList<>();
+
+    /** Last generated id. Generated ids count down from DEFAULT_ID */
+    private static long lastGeneratedId = DEFAULT_ID;
+
+    /** Name, ringtone, vibration, photo and schedule of every contact as last published, by id.
+     * See snapshot() */
+    private static final LongHashMap<String[]> published = new LongHashMap<>();
+
+    /** Contact ids by name, in the order the contacts were indexed. Names are not unique */
+    private static final HashMap<String, LinkedHashSet<Long>> nameIndex = new HashMap<>();
+
+    /** Contact ids by phone number (E.164 digits) */
+    private static final LongHashMap<Long> numberIndex = new LongHashMap<>();
+
+    /** Contact ids by ContactsContract contact id */
+    private static final LongHashMap<Long> contactIdIndex = new LongHashMap<>();
+
+    /** Contact ids by ContactsContract lookup key */
+    private static final HashMap<String, Long> lookupKeyIndex = new HashMap<>();
+
+    /** Identity of every contact as it was indexed, by id */
+    private static final LongHashMap<Identity> indexed = new LongHashMap<>();
+
+    /** Ids of the contacts that use a vibration, by vibration name. Includes the default contact */
+    private static final HashMap<String, LinkedHashSet<Long>> vibrationRefs = new HashMap<>();
+
+    /** Ids of the contacts that use a ringtone, by ringtone URI. Includes the default contact */
+    private static final HashMap<String, LinkedHashSet<Long>> ringtoneRefs = new HashMap<>();
+
+    /** Number of custom contacts, excluding the default contact */
+    private static int customCount = 0;
+
+    /** Number of custom contacts with a vibration other than the default vibration */
+    private static int customVibrationCount = 0;
+
+    /** Country used to normalize phone numbers without country code. Null until first needed */
+    private static String countryIso = null;
+
+    /** Changes that were not delivered to the listeners yet. Only touched on the main thread */
+    private static ArrayList<ContactChange> pendingChanges = new ArrayList<>();
+
+    /** Listeners that are told about changes. Only touched on the main thread */
+    private static final ArrayList<OnContactsChangedListener> listeners = new ArrayList<>();
+
+    /** Main thread handler used to deliver batches of changes */
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Delivers all pending changes in one batch */
+    private static final Runnable deliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliverChanges();
+        }
+    };
 
     /**
      * Class that represents a CustomRingerPerson that has several attributes and can be serialized
      */
     public static class CustomRingerPerson implements Serializable {
+        /** Pinned to the id of the original field set so that existing data files still load */
+        private static final long serialVersionUID = 1828032187502133693L;
+
         /** Name of contact person */
         public String name;
 
         /** The profile pic (stored in Contacts) from person */
         public String photoURI;
 
+        /** CONTACT_LAST_UPDATED_TIMESTAMP of the contact when photoURI was last synced. Changes
+         * when the picture is edited even though the URI stays the same. 0 if not known */
+        public long photoTimestamp;
+
         /** The custom ringtone URI that plays when user gets message from this person */
         public String ringtoneURI;
 
@@ -52,20 +149,418 @@ public class ContactsManager {
 
         /** The times at which user received messages from this person. */
         public ArrayList<Long> messageTimestamps;
+
+        /** ContactsContract contact id of this person. 0 if not known yet */
+        public long contactId;
+
+        /** ContactsContract lookup key of this person. Null if not known yet */
+        public String lookupKey;
+
+        /** Phone numbers of this person as E.164 digits without '+'. Null if not known yet */
+        public long[] phoneNumbers;
+
+        /** Stable id of this person. 0 until the person was first put into ContactsManager */
+        public long id;
+
+        /** Times at which a different tone / vibration plays. Null or empty if there are none.
+         * Changed through setSchedule() */
+        public ArrayList<AlertWindow> schedule;
     }
 
     /**
-     * Internal method used to save the current set of CustomRingerPerson 's
+     * A weekly recurring time window during which a contact gets a different tone and vibration,
+     * e.g. silent at night or a quieter tone during work hours. If windows overlap, the later one
+     * in the schedule wins.
+     */
+    public static class AlertWindow implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /** Bit (Calendar.DAY_OF_WEEK - 1) is set for each day on which the window starts */
+        public int days;
+
+        /** Minute of the day at which the window starts */
+        public int startMinute;
+
+        /** Minute of the day at which the window ends. At or before startMinute if the window
+         * runs past midnight into the next day */
+        public int endMinute;
+
+        /** The ringtone URI that plays during the window, or NONE_RINGTONE_ID for silence */
+        public String ringtoneURI;
+
+        /** The vibrate URI that plays during the window */
+        public String vibrateURI;
+    }
+
+    /**
+     * Display name, photo, lookup key and phone numbers of an address book contact, as read by
+     * ContactsSync.
+     */
+    static class ContactInfo {
+        final long contactId;
+        final String name;
+        final String photoURI;
+        final long updated;
+        final String lookupKey;
+        final long[] phoneNumbers;
+
+        ContactInfo(long _contactId, String _name, String _photoURI, long _updated,
+                    String _lookupKey, long[] _phoneNumbers) {
+            contactId = _contactId;
+            name = _name;
+            photoURI = _photoURI;
+            updated = _updated;
+            lookupKey = _lookupKey;
+            phoneNumbers = _phoneNumbers;
+        }
+    }
+
+    /**
+     * The keys a contact was indexed under.
+     */
+    private static final class Identity {
+        final String name;
+        final long contactId;
+        final String lookupKey;
+        final long[] phoneNumbers;
+
+        Identity(CustomRingerPerson person) {
+            name = person.name;
+            contactId = person.contactId;
+            lookupKey = person.lookupKey;
+            phoneNumbers = person.phoneNumbers == null ? null : person.phoneNumbers.clone();
+        }
+
+        boolean sameAs(CustomRingerPerson person) {
+            return name.equals(person.name) && contactId == person.contactId
+                    && equal(lookupKey, person.lookupKey)
+                    && Arrays.equals(phoneNumbers, person.phoneNumbers);
+        }
+    }
+
+    /**
+     * A single change to the contacts list.
+     */
+    public static class ContactChange {
+        /** A custom contact was added */
+        public static final int ADDED = 0;
+
+        /** A custom contact was removed */
+        public static final int REMOVED = 1;
+
+        /** The ringtone of a custom contact changed */
+        public static final int RINGTONE_CHANGED = 2;
+
+        /** The vibration of a custom contact changed */
+        public static final int VIBRATION_CHANGED = 3;
+
+        /** The default ringtone or vibration changed. name is the default contact's name */
+        public static final int DEFAULT_CHANGED = 4;
+
+        /** The photo of a custom contact changed */
+        public static final int PHOTO_CHANGED = 5;
+
+        /** One of the constants above */
+        public final int type;
+
+        /** Id of the contact that changed */
+        public final long id;
+
+        /** Name of the contact that changed */
+        public final String name;
+
+        /** The contacts list version right after this change was saved */
+        public final long version;
+
+        ContactChange(int _type, long _id, String _name, long _version) {
+            type = _type;
+            id = _id;
+            name = _name;
+            version = _version;
+        }
+
+        @Override
+        public String toString() {
+            return "ContactChange{type=" + type + ", id=" + id + ", name=" + name
+                    + ", version=" + version + "}";
+        }
+    }
+
+    /**
+     * Callback for changes to the contacts list.
+     */
+    public interface OnContactsChangedListener {
+        /**
+         * Called on the main thread with all changes since the previous call, oldest first.
+         * @param changes The changes. Versions increase monotonically across calls
+         */
+        void onContactsChanged(List<ContactChange> changes);
+    }
+
+    /**
+     * Register a listener for changes to the contacts list. Must be called on the main thread.
+     */
+    public static void addOnContactsChangedListener(OnContactsChangedListener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener added with addOnContactsChangedListener. Must be called on the main
+     * thread.
+     */
+    public static void removeOnContactsChangedListener(OnContactsChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Compare a contact with what was last published for it and queue the resulting changes.
+     * Every resulting change increments the version. A renamed contact is published as removed
+     * under its old name and added under its new one.
+     * @param id Id of the contact that may have changed
+     */
+    private static void recordChange(long id) {
+        // new numbers are not shown anywhere, but change which contact a sender resolves to
+        if (reindex(id)) version++;
+        CustomRingerPerson person = contacts.get(id);
+        String[] old = published.get(id);
+        boolean isDefault = id == DEFAULT_ID;
+
+        if (person == null) {
+            if (old == null) return;
+            published.remove(id);
+            updateReferences(id, old, null);
+            queueChange(isDefault ? ContactChange.DEFAULT_CHANGED : ContactChange.REMOVED, id,
+                    old[0]);
+            return;
+        }
+
+        String[] now = snapshot(person);
+        published.put(id, now);
+        updateReferences(id, old, now);
+        if (old == null) {
+            queueChange(isDefault ? ContactChange.DEFAULT_CHANGED : ContactChange.ADDED, id,
+                    person.name);
+            return;
+        }
+
+        // schedules are not shown anywhere, but change what plays for a sender
+        if (!equal(old[4], now[4])) version++;
+
+        boolean ringtone = !equal(old[1], now[1]);
+        boolean vibration = !equal(old[2], now[2]);
+        if (isDefault) {
+            if (ringtone || vibration) queueChange(ContactChange.DEFAULT_CHANGED, id, person.name);
+            return;
+        }
+        if (!old[0].equals(now[0])) {
+            queueChange(ContactChange.REMOVED, id, old[0]);
+            queueChange(ContactChange.ADDED, id, now[0]);
+            return;
+        }
+        if (ringtone) queueChange(ContactChange.RINGTONE_CHANGED, id, person.name);
+        if (vibration) queueChange(ContactChange.VIBRATION_CHANGED, id, person.name);
+        if (!equal(old[3], now[3])) queueChange(ContactChange.PHOTO_CHANGED, id, person.name);
+    }
+
+    /**
+     * Returns the state of a contact that recordChange compares: name, ringtone, vibration, photo
+     * and the schedule flattened into a string, or null if there is none.
+     */
+    private static String[] snapshot(CustomRingerPerson person) {
+        String schedule = null;
+        if (person.schedule != null && !person.schedule.isEmpty()) {
+            StringBuilder builder = new StringBuilder();
+            for (AlertWindow w : person.schedule) {
+                builder.append(w.days).append(',').append(w.startMinute).append(',')
+                        .append(w.endMinute).append(',').append(w.ringtoneURI).append(',')
+                        .append(w.vibrateURI).append('\n');
+            }
+            schedule = builder.toString();
+        }
+        String photo = person.photoURI == null ? null
+                : person.photoURI + "@" + person.photoTimestamp;
+        return new String[]{person.name, person.ringtoneURI, person.vibrateURI, photo, schedule};
+    }
+
+    /**
+     * Add a change to the pending batch and schedule its delivery.
+     */
+    private static void queueChange(int type, long id, String name) {
+        if (pendingChanges.isEmpty()) mainHandler.post(deliverRunnable);
+        pendingChanges.add(new ContactChange(type, id, name, ++version));
+    }
+
+    /**
+     * Hand the pending batch of changes to all listeners.
+     */
+    private static void deliverChanges() {
+        if (pendingChanges.isEmpty()) return;
+        List<ContactChange> batch = Collections.unmodifiableList(pendingChanges);
+        pendingChanges = new ArrayList<>();
+        for (OnContactsChangedListener l : new ArrayList<>(listeners)) l.onContactsChanged(batch);
+    }
+
+    /**
+     * Remember the current state of all contacts as published, without queueing changes.
+     * Called after the data file was read.
+     */
+    private static void resetPublished() {
+        published.clear();
+        vibrationRefs.clear();
+        ringtoneRefs.clear();
+        customCount = 0;
+        customVibrationCount = 0;
+        nameIndex.clear();
+        numberIndex.clear();
+        contactIdIndex.clear();
+        lookupKeyIndex.clear();
+        indexed.clear();
+        for (long id : order) {
+            CustomRingerPerson person = contacts.get(id);
+            String[] now = snapshot(person);
+            published.put(id, now);
+            updateReferences(id, null, now);
+            reindex(id);
+        }
+    }
+
+    /**
+     * Move a contact in the ringtone and vibration reverse indexes and the counts from what was
+     * published before to what is published now.
+     * @param old Previously published state as in published. Null if the contact is new
+     * @param now Newly published state. Null if the contact was removed
+     */
+    private static void updateReferences(long id, String[] old, String[] now) {
+        if (old != null && now != null && equal(old[1], now[1]) && equal(old[2], now[2])) return;
+        if (old != null) {
+            removeReference(ringtoneRefs, old[1], id);
+            removeReference(vibrationRefs, old[2], id);
+            if (id != DEFAULT_ID) {
+                customCount--;
+                if (!VibrationsManager.DEFAULT_VIBRATION.equals(old[2])) customVibrationCount--;
+            }
+        }
+        if (now != null) {
+            addReference(ringtoneRefs, now[1], id);
+            addReference(vibrationRefs, now[2], id);
+            if (id != DEFAULT_ID) {
+                customCount++;
+                if (!VibrationsManager.DEFAULT_VIBRATION.equals(now[2])) customVibrationCount++;
+            }
+        }
+    }
+
+    /**
+     * Add an id to the set of a key in a reverse index.
+     */
+    private static void addReference(HashMap<String, LinkedHashSet<Long>> refs, String key,
+                                     long id) {
+        if (key == null) return;
+        LinkedHashSet<Long> ids = refs.get(key);
+        if (ids == null) {
+            ids = new LinkedHashSet<>();
+            refs.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    /**
+     * Remove an id from the set of a key in a reverse index, dropping the key once it is unused.
+     */
+    private static void removeReference(HashMap<String, LinkedHashSet<Long>> refs, String key,
+                                        long id) {
+        if (key == null) return;
+        LinkedHashSet<Long> ids = refs.get(key);
+        if (ids != null && ids.remove(id) && ids.isEmpty()) refs.remove(key);
+    }
+
+    /**
+     * Update the name, phone number, contact id and lookup key indexes of a contact. Cheap if
+     * its identity did not change.
+     * @param id Id of the contact that may have changed
+     * @return True if the indexes changed
+     */
+    private static boolean reindex(long id) {
+        CustomRingerPerson person = contacts.get(id);
+        Identity old = indexed.get(id);
+        if (old == null ? person == null : person != null && old.sameAs(person)) return false;
+
+        if (old != null) {
+            indexed.remove(id);
+            Long key = id;
+            removeReference(nameIndex, old.name, id);
+            if (key.equals(contactIdIndex.get(old.contactId))) contactIdIndex.remove(old.contactId);
+            if (old.lookupKey != null && key.equals(lookupKeyIndex.get(old.lookupKey)))
+                lookupKeyIndex.remove(old.lookupKey);
+            if (old.phoneNumbers != null) {
+                for (long number : old.phoneNumbers)
+                    if (key.equals(numberIndex.get(number))) numberIndex.remove(number);
+            }
+        }
+        if (person == null) return old != null;
+
+        Identity now = new Identity(person);
+        indexed.put(id, now);
+        addReference(nameIndex, now.name, id);
+        if (now.contactId != 0) contactIdIndex.put(now.contactId, id);
+        if (now.lookupKey != null) lookupKeyIndex.put(now.lookupKey, id);
+        if (now.phoneNumbers != null) {
+            for (long number : now.phoneNumbers) numberIndex.put(number, id);
+        }
+        return true;
+    }
+
+    /**
+     * Give a person that was not put into ContactsManager before its id. A person with the
+     * contact id of an existing contact replaces that contact and takes its id. Only persons
+     * without a contact id are matched by name, so different address book contacts with the same
+     * display name are kept apart.
+     */
+    private static void assignId(CustomRingerPerson person) {
+        if (person.id != 0) return;
+        Long existing = person.contactId > 0 ? contactIdIndex.get(person.contactId)
+                : idByName(person.name);
+        if (existing != null) person.id = existing;
+        else if (person.name.equals(DEFAULT_CONTACT_ID)) person.id = DEFAULT_ID;
+        else if (person.contactId > 0 && !contacts.containsKey(person.contactId))
+            person.id = person.contactId;
+        else person.id = --lastGeneratedId;
+    }
+
+    /**
+     * Returns the id of the first indexed contact with a name, or null if there is none.
+     */
+    private static Long idByName(String name) {
+        LinkedHashSet<Long> ids = nameIndex.get(name);
+        return ids == null ? null : ids.iterator().next();
+    }
+
+    /**
+     * Store a person under its id, keeping the order of existing contacts.
+     */
+    private static void store(CustomRingerPerson person) {
+        assignId(person);
+        if (contacts.put(person.id, person) == null) order.add(person.id);
+    }
+
+    /**
+     * Internal method used to save the current set of CustomRingerPerson 's. The list is written
+     * to a temporary file which then replaces the data file, so a failed write never leaves a
+     * half written data file behind.
      */
     private static void writeDataFile(Context context) {
         lock.writeLock().lock();
         try {
             File dataFile = new File(context.getExternalFilesDir(null), DATAFILE);
-            FileOutputStream outputStream = new FileOutputStream(dataFile);
+            File tmpFile = new File(context.getExternalFilesDir(null), DATAFILE + ".tmp");
+            ArrayList<CustomRingerPerson> list = new ArrayList<>(order.size());
+            for (long id : order) list.add(contacts.get(id));
+            FileOutputStream outputStream = new FileOutputStream(tmpFile);
             ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-            objectOutputStream.writeObject(contactList);
+            objectOutputStream.writeObject(list);
             objectOutputStream.close();
             outputStream.close();
+            if (!tmpFile.renameTo(dataFile)) throw new Exception("Failed to replace " + DATAFILE);
         } catch (Exception e) {
             Log.e(TAG, e.toString());
         } finally {
@@ -74,10 +569,18 @@ public class ContactsManager {
     }
 
     /**
-     * Return the name of the default contact (with default ringtone / vib pattern)
+     * Returns the current version of the contacts list. The version changes whenever a contact
+     * is added, removed or gets a new name, photo, ringtone, vibration, phone numbers or schedule.
      */
-    public static String getDefaultContactName() {
-        return DEFAULT_CONTACT_ID;
+    public static long getVersion() {
+        return version;
+    }
+
+    /**
+     * Return the id of the default contact (with default ringtone / vib pattern)
+     */
+    public static long getDefaultContactId() {
+        return DEFAULT_ID;
     }
 
     /**
@@ -85,8 +588,16 @@ public class ContactsManager {
      * @return True if contacts list is empty. False, otherwise.
      */
     public static boolean isEmptyContacts(Context ctx) {
-        if (contactList == null) readDataFile(ctx);
-        return contactList.size() <= 1;     // one is empty since default ringer takes up 1 space
+        if (contacts == null) readDataFile(ctx);
+        return customCount == 0;
+    }
+
+    /**
+     * Returns the number of custom contacts (excluding DEFAULT_CONTACT_ID person)
+     */
+    public static int getCustomContactCount(Context ctx) {
+        if (contacts == null) readDataFile(ctx);
+        return customCount;
     }
 
     /**
@@ -94,19 +605,47 @@ public class ContactsManager {
      * @param person CustomRingerPerson to add to current contacts list
      */
     public static void putContact(Context ctx, CustomRingerPerson person) {
-        if (contactList == null) readDataFile(ctx);
-        contactList.put(person.name, person);
+        if (contacts == null) readDataFile(ctx);
+        store(person);
         writeDataFile(ctx);
+        recordChange(person.id);
     }
 
     /**
-     * Remove a CustomRingerPerson by name from the current list of contacts. Then save to disk.
-     * @param name The name of the contact to remove
+     * Add several CustomRingerPersons to the current list of contacts, then save to disk once.
+     * @param persons CustomRingerPersons to add to current contacts list
      */
-    public static void removeContact(Context ctx, String name) {
-        if (contactList == null) readDataFile(ctx);
-        contactList.remove(name);
+    public static void putContacts(Context ctx, List<CustomRingerPerson> persons) {
+        if (contacts == null) readDataFile(ctx);
+        for (CustomRingerPerson person : persons) store(person);
         writeDataFile(ctx);
+        for (CustomRingerPerson person : persons) recordChange(person.id);
+    }
+
+    /**
+     * Replace the schedule of a contact and save it. SenderResolver picks up the new schedule
+     * with the next message, since a changed schedule bumps the version.
+     * @param id The id of the contact
+     * @param windows The new schedule. Null or empty to remove all windows
+     */
+    public static void setSchedule(Context ctx, long id, List<AlertWindow> windows) {
+        if (contacts == null) readDataFile(ctx);
+        CustomRingerPerson person = contacts.get(id);
+        if (person == null) return;
+        person.schedule = windows == null || windows.isEmpty() ? null : new ArrayList<>(windows);
+        putContact(ctx, person);
+    }
+
+    /**
+     * Remove a CustomRingerPerson by id from the current list of contacts. Then save to disk.
+     * @param id The id of the contact to remove
+     */
+    public static void removeContact(Context ctx, long id) {
+        if (contacts == null) readDataFile(ctx);
+        if (contacts.remove(id) == null) return;
+        order.remove(id);
+        writeDataFile(ctx);
+        recordChange(id);
     }
 
     /**
@@ -114,7 +653,7 @@ public class ContactsManager {
      * not already exist, then assigned him the default tone & vib pattern
      */
     private static void addDefaultContact(Context ctx) {
-        CustomRingerPerson def = getContact(ctx, DEFAULT_CONTACT_ID);
+        CustomRingerPerson def = getContact(ctx, DEFAULT_ID);
         if (def == null) {
             // Default person doesn't exist yet, so add him.
             def = new CustomRingerPerson();
@@ -131,12 +670,80 @@ public class ContactsManager {
      * @param vib The vibration name to remove
      */
     static void removeVibrationFromAllContacts(Context ctx, String vib) {
-        if (contactList == null) readDataFile(ctx);
-        for (Map.Entry<String, CustomRingerPerson> entry : contactList.entrySet()) {
-            if (entry.getValue().vibrateURI.equals(vib))
-                entry.getValue().vibrateURI = VibrationsManager.DEFAULT_VIBRATION;
+        if (contacts == null) readDataFile(ctx);
+        LinkedHashSet<Long> refs = vibrationRefs.get(vib);
+        if (refs == null) return;
+        // copied, since recording the changes updates the index
+        List<Long> changed = new ArrayList<>(refs);
+        for (long id : changed) contacts.get(id).vibrateURI = VibrationsManager.DEFAULT_VIBRATION;
+        writeDataFile(ctx);
+        for (long id : changed) recordChange(id);
+    }
+
+    /**
+     * Apply changes of address book contacts to the matching custom contacts in a single write.
+     * Contacts are matched by contactId. Contacts stored before ids were recorded are matched by
+     * name once and then remember the id.
+     * @param updates The address book contacts that changed
+     * @return True if any custom contact was changed
+     */
+    static boolean applyContactUpdates(Context ctx, List<ContactInfo> updates) {
+        if (contacts == null) readDataFile(ctx);
+        HashMap<Long, ContactInfo> byId = new HashMap<>();
+        HashMap<String, ContactInfo> byName = new HashMap<>();
+        for (ContactInfo info : updates) {
+            byId.put(info.contactId, info);
+            byName.put(info.name, info);
+        }
+
+        List<Long> changed = new ArrayList<>();
+        for (long id : order) {
+            CustomRingerPerson person = contacts.get(id);
+            ContactInfo info;
+            boolean modified = false;
+            if (id == DEFAULT_ID) {
+                info = null;
+            } else if (person.contactId != 0) {
+                info = byId.get(person.contactId);
+            } else {
+                info = byName.get(person.name);
+                if (info != null) {
+                    person.contactId = info.contactId;
+                    modified = true;
+                }
+            }
+            if (info == null) continue;
+
+            if (info.name != null && !info.name.equals(person.name)) {
+                Log.i(TAG, "Contact '" + person.name + "' was renamed to '" + info.name + "'");
+                person.name = info.name;
+                modified = true;
+            }
+            if (!equal(info.photoURI, person.photoURI) || info.updated != person.photoTimestamp) {
+                person.photoURI = info.photoURI;
+                person.photoTimestamp = info.updated;
+                modified = true;
+            }
+            if (!equal(info.lookupKey, person.lookupKey)
+                    || !Arrays.equals(info.phoneNumbers, person.phoneNumbers)) {
+                person.lookupKey = info.lookupKey;
+                person.phoneNumbers = info.phoneNumbers;
+                modified = true;
+            }
+            if (modified) changed.add(id);
         }
+
+        if (changed.isEmpty()) return false;
         writeDataFile(ctx);
+        for (long id : changed) recordChange(id);
+        return true;
+    }
+
+    /**
+     * Null-safe String equality
+     */
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     /**
@@ -144,24 +751,38 @@ public class ContactsManager {
      * default vibration or default contact person).
      */
     public static int countContactsWithVibrations(Context ctx) {
-        if (contactList == null) readDataFile(ctx);
-        int i = 0;
-        for (Map.Entry<String, CustomRingerPerson> entry : contactList.entrySet()) {
-            if (entry.getKey().equals(DEFAULT_CONTACT_ID)) continue;
-            if (!entry.getValue().vibrateURI.equals(VibrationsManager.DEFAULT_VIBRATION))
-                i++;
-        }
-        return i;
+        if (contacts == null) readDataFile(ctx);
+        return customVibrationCount;
+    }
+
+    /**
+     * Returns the ids of the contacts that use a ringtone, including the default contact.
+     * @param ringtoneURI The ringtone URI
+     */
+    public static List<Long> getContactIdsWithRingtone(Context ctx, String ringtoneURI) {
+        if (contacts == null) readDataFile(ctx);
+        LinkedHashSet<Long> refs = ringtoneRefs.get(ringtoneURI);
+        return refs == null ? new ArrayList<Long>() : new ArrayList<>(refs);
+    }
+
+    /**
+     * Returns the ids of the contacts that use a vibration, including the default contact.
+     * @param vibrationName The vibration name
+     */
+    public static List<Long> getContactIdsWithVibration(Context ctx, String vibrationName) {
+        if (contacts == null) readDataFile(ctx);
+        LinkedHashSet<Long> refs = vibrationRefs.get(vibrationName);
+        return refs == null ? new ArrayList<Long>() : new ArrayList<>(refs);
     }
 
     /**
      * Returns the current default ringtone uri (from DEFAULT_CONTACT_ID person)
      */
     public static String getDefaultToneString(Context ctx) {
-        CustomRingerPerson def = getContact(ctx, DEFAULT_CONTACT_ID);
+        CustomRingerPerson def = getContact(ctx, DEFAULT_ID);
         if (def == null || def.ringtoneURI.equals("") || def.vibrateURI.equals("")) {
             addDefaultContact(ctx);
-            def = getContact(ctx, DEFAULT_CONTACT_ID);
+            def = getContact(ctx, DEFAULT_ID);
         }
         return def.ringtoneURI;
     }
@@ -170,40 +791,189 @@ public class ContactsManager {
      *  Returns the current default vibrate uri (from DEFAULT_CONTACT_ID person)
      */
     public static String getDefaultVibString(Context ctx) {
-        CustomRingerPerson def = getContact(ctx, DEFAULT_CONTACT_ID);
+        CustomRingerPerson def = getContact(ctx, DEFAULT_ID);
         if (def == null || def.ringtoneURI.equals("") || def.vibrateURI.equals("")) {
             addDefaultContact(ctx);
-            def = getContact(ctx, DEFAULT_CONTACT_ID);
+            def = getContact(ctx, DEFAULT_ID);
         }
         return def.vibrateURI;
     }
 
     /**
-     *  Returns a list of all names that have been given a custom ringtone
-     *  (excluding DEFAULT_CONTACT_ID person)
+     *  Returns the ids of all contacts that have been given a custom ringtone, in the order they
+     *  were added (excluding DEFAULT_CONTACT_ID person)
+     */
+    public static List<Long> getCustomContactIds(Context ctx) {
+        if (contacts == null) readDataFile(ctx);
+        List<Long> c = new ArrayList<>(order.size());
+        for (long id : order) if (id != DEFAULT_ID) c.add(id);
+        return c;
+    }
+
+    /**
+     * Returns the ContactsContract ids of all custom contacts whose id is known
+     */
+    public static List<Long> getAllContactIds(Context ctx) {
+        if (contacts == null) readDataFile(ctx);
+        List<Long> c = new ArrayList<>(order.size());
+        for (long id : order) {
+            CustomRingerPerson person = contacts.get(id);
+            if (person.contactId != 0) c.add(person.contactId);
+        }
+        return c;
+    }
+
+    /**
+     * Returns the names of custom contacts whose ContactsContract id is not known yet
+     * (excluding DEFAULT_CONTACT_ID person)
      */
-    public static List<String> getAllContactNames(Context ctx) {
-        if (contactList == null) readDataFile(ctx);
-        List<String> c = new ArrayList<>(contactList.keySet());
-        c.remove(DEFAULT_CONTACT_ID);
+    public static List<String> getNamesWithoutContactId(Context ctx) {
+        if (contacts == null) readDataFile(ctx);
+        List<String> c = new ArrayList<>();
+        for (long id : order) {
+            CustomRingerPerson person = contacts.get(id);
+            if (person.contactId == 0 && id != DEFAULT_ID) c.add(person.name);
+        }
+        return c;
+    }
+
+    /**
+     * Returns the contact ids of custom contacts whose lookup key and phone numbers are not known
+     * yet (excluding DEFAULT_CONTACT_ID person)
+     */
+    static List<Long> getContactIdsWithoutLookupKey(Context ctx) {
+        if (contacts == null) readDataFile(ctx);
+        List<Long> c = new ArrayList<>();
+        for (long id : order) {
+            CustomRingerPerson person = contacts.get(id);
+            if (person.contactId != 0 && person.lookupKey == null) c.add(person.contactId);
+        }
         return c;
     }
 
     /**
-     * Gets a custom a CustomRingerPerson by name.
-     * @param name The name of the CustomRingerPerson to get
-     * @return CustomRingerPerson. null if the person has no custom ringtone assigned
+     * Gets the custom contact who sent a notification. Phone numbers, lookup keys and contact ids
+     * from the notification's people are matched first, since display names are ambiguous and
+     * change when the user renames a contact. The name is only used if the people do not
+     * identify anyone, or if the contact's own numbers are not known, e.g. because they could not
+     * be parsed without a country.
+     * @param name Display name of the sender
+     * @param people tel: or ContactsContract URIs of the sender. May be null
+     * @return CustomRingerPerson. null if the sender has no custom ringtone assigned
+     */
+    public static CustomRingerPerson findContact(Context ctx, String name, String[] people) {
+        if (contacts == null) readDataFile(ctx);
+        boolean identified = false;
+        if (people != null) {
+            for (String uri : people) {
+                if (uri == null) continue;
+                Long match = null;
+                if (uri.startsWith("tel:")) {
+                    long number = parseNumber(ctx, Uri.decode(uri.substring(4)));
+                    if (number == 0) continue;
+                    match = numberIndex.get(number);
+                } else if (uri.startsWith(CONTACTS_URI)) {
+                    // contacts/<id> or contacts/lookup/<key>[/<id>]
+                    List<String> segments = Uri.parse(uri).getPathSegments();
+                    boolean isLookup = segments.size() >= 3 && segments.get(1).equals("lookup");
+                    String lookupKey = isLookup ? segments.get(2) : null;
+                    long contactId = parseId(isLookup ? (segments.size() == 4 ? segments.get(3)
+                            : null) : (segments.size() == 2 ? segments.get(1) : null));
+                    if (lookupKey == null && contactId == 0) continue;
+                    if (lookupKey != null) match = lookupKeyIndex.get(lookupKey);
+                    if (match == null && contactId != 0) match = contactIdIndex.get(contactId);
+                } else {
+                    continue;
+                }
+                if (match != null) return contacts.get(match);
+                identified = true;
+            }
+        }
+
+        // the people point to someone else, unless this contact's numbers are not known.
+        // Several contacts may share the name, the one added first is the best guess
+        Long id = idByName(name);
+        CustomRingerPerson person = id == null ? null : contacts.get(id);
+        if (person != null && identified && person.lookupKey != null
+                && person.phoneNumbers != null && person.phoneNumbers.length > 0) return null;
+        return person;
+    }
+
+    /**
+     * Parses a contact id of a ContactsContract URI.
+     * @return The id, or 0 if there is none
+     */
+    private static long parseId(String segment) {
+        if (segment == null) return 0;
+        try {
+            return Long.parseLong(segment);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Converts a phone number to E.164 digits. Numbers without country code are taken to be
+     * from the country of the network or SIM, or else the locale.
+     * @return The number as E.164 digits without '+'. 0 if it is not a valid number
+     */
+    static long parseNumber(Context ctx, String number) {
+        if (number == null) return 0;
+        if (!number.trim().startsWith("+")) {
+            if (countryIso == null) countryIso = getCountryIso(ctx);
+            number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            if (number == null) return 0;
+        }
+
+        long digits = 0;
+        int count = 0;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') continue;
+            // E.164 numbers have at most 15 digits
+            if (++count > 15) return 0;
+            digits = digits * 10 + (c - '0');
+        }
+        return count < 3 ? 0 : digits;
+    }
+
+    /**
+     * Returns the upper case ISO country code of the phone network, the SIM or the locale.
+     */
+    private static String getCountryIso(Context ctx) {
+        TelephonyManager tm = (TelephonyManager) ctx.getSystemService(Context.TELEPHONY_SERVICE);
+        String iso = null;
+        if (tm != null) {
+            iso = tm.getNetworkCountryIso();
+            if (iso == null || iso.isEmpty()) iso = tm.getSimCountryIso();
+        }
+        if (iso == null || iso.isEmpty()) iso = Locale.getDefault().getCountry();
+        return iso.toUpperCase(Locale.US);
+    }
+
+    /**
+     * Gets a custom a CustomRingerPerson by id.
+     * @param id The id of the CustomRingerPerson to get
+     * @return CustomRingerPerson. null if there is no contact with this id
      */
-    public static CustomRingerPerson getContact(Context ctx, String name) {
-        if (contactList == null) readDataFile(ctx);
-        return contactList.get(name);
+    public static CustomRingerPerson getContact(Context ctx, long id) {
+        if (contacts == null) readDataFile(ctx);
+        return contacts.get(id);
     }
 
     /**
-     * Loads the data file (with contacts) from disk; Creates it if it doesn't exist
+     * Loads the data file (with contacts) from disk; Creates it if it doesn't exist. Data files
+     * of older versions, which map names to persons without ids, are converted once.
      */
     @SuppressWarnings("unchecked")
     private static void readDataFile(Context context) {
+        contacts = new LongHashMap<>();
+        order.clear();
+        lastGeneratedId = DEFAULT_ID;
+        File legacyFile = new File(context.getExternalFilesDir(null), LEGACY_DATAFILE);
+        File dataFile = new File(context.getExternalFilesDir(null), DATAFILE);
+        boolean migrate = false;
+
         lock.readLock().lock();
         try {
             File dataDir = new File (context.getExternalFilesDir(null) + "/data");
@@ -214,30 +984,57 @@ public class ContactsManager {
                 }
             }
 
-            File dataFile = new File(context.getExternalFilesDir(null), DATAFILE);
-
             if (dataFile.exists()) {
                 // Read contents of datafile into contacts list
-                FileInputStream inputStream = new FileInputStream(dataFile);
-                ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
-                contactList = (LinkedHashMap<String, CustomRingerPerson>) (objectInputStream.readObject());
-                objectInputStream.close();
-                inputStream.close();
-            } else {
-                // data file does not exist, so create an empty list from scratch
-                contactList = new LinkedHashMap<>();
+                ArrayList<CustomRingerPerson> list =
+                        (ArrayList<CustomRingerPerson>) readObject(dataFile);
+                for (CustomRingerPerson person : list) load(person);
+            } else if (legacyFile.exists()) {
+                migrate = true;
+                LinkedHashMap<String, CustomRingerPerson> legacy =
+                        (LinkedHashMap<String, CustomRingerPerson>) readObject(legacyFile);
+                for (CustomRingerPerson person : legacy.values()) load(person);
             }
+            // otherwise data file does not exist, so start with an empty list
         }
         catch (Exception e) {
             Log.e(TAG, e.toString());
             Log.e(TAG, "Contacts data file is corrupt. Trying to delete it...");
-            File dataFile = new File(context.getExternalFilesDir(null), DATAFILE);
-            if (dataFile.delete()) {
+            if ((migrate ? legacyFile : dataFile).delete()) {
                 Log.i(TAG, "Data file deleted succesfully!");
             }
-            contactList = new LinkedHashMap<>();
+            contacts = new LongHashMap<>();
+            order.clear();
+            migrate = false;
         } finally {
             lock.readLock().unlock();
         }
+        resetPublished();
+
+        if (migrate) {
+            writeDataFile(context);
+            if (dataFile.exists() && legacyFile.delete())
+                Log.i(TAG, "Converted " + LEGACY_DATAFILE + " to " + DATAFILE);
+        }
+    }
+
+    /**
+     * Add a person read from disk. Persons from old data files get their id here.
+     */
+    private static void load(CustomRingerPerson person) {
+        lastGeneratedId = Math.min(lastGeneratedId, person.id);
+        store(person);
+    }
+
+    /**
+     * Reads the single object of a data file.
+     */
+    private static Object readObject(File file) throws Exception {
+        FileInputStream inputStream = new FileInputStream(file);
+        ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
+        Object o = objectInputStream.readObject();
+        objectInputStream.close();
+        inputStream.close();
+        return o;
     }
 }
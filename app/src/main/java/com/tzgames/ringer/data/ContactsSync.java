@@ -0,0 +1,326 @@
+package com.tzgames.ringer.data;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+import androidx.preference.PreferenceManager;
+
+import com.tzgames.ringer.data.ContactsManager.ContactInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the names, photos, lookup keys and phone numbers of custom contacts in sync with the
+ * address book. A ContentObserver
+ * on ContactsContract triggers a sync that only queries contacts updated since the newest
+ * CONTACT_LAST_UPDATED_TIMESTAMP seen by the previous sync (the watermark). Queries run on a
+ * background thread; the changes are then applied to ContactsManager on the main thread in one
+ * batched write, which publishes them to its OnContactsChangedListeners.
+ *
+ * On the very first sync, the watermark is initialized to the newest timestamp in the address
+ * book, and only custom contacts stored before contact ids were recorded are looked up by name.
+ * Custom contacts whose lookup key is not known yet (stored before it was recorded, or just
+ * imported) are looked up by contact id on the next sync.
+ */
+public class ContactsSync {
+    /** Debug Tag */
+    private static final String TAG = "ContactsSync";
+
+    /** SharedPreferences key of the watermark */
+    private static final String PREF_WATERMARK = "contacts_sync_watermark";
+
+    /** Delay to coalesce bursts of address book change notifications into one sync */
+    private static final int SYNC_DELAY_MS = 1000;
+
+    /** Max number of names per IN (...) selection */
+    private static final int MAX_SELECTION_ARGS = 500;
+
+    /** Columns read for every changed contact */
+    private static final String[] PROJECTION = {
+            ContactsContract.Contacts._ID,
+            ContactsContract.Contacts.DISPLAY_NAME,
+            ContactsContract.Contacts.PHOTO_THUMBNAIL_URI,
+            ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP,
+            ContactsContract.Contacts.LOOKUP_KEY
+    };
+
+    /** Columns read for every phone number of a changed contact */
+    private static final String[] PHONE_PROJECTION = {
+            ContactsContract.CommonDataKinds.Phone.CONTACT_ID,
+            ContactsContract.CommonDataKinds.Phone.NORMALIZED_NUMBER,
+            ContactsContract.CommonDataKinds.Phone.NUMBER
+    };
+
+    /** Application context. Null until start() was called */
+    private static Context appContext;
+
+    /** Handler of the background thread that runs the queries */
+    private static Handler syncHandler;
+
+    /** Main thread handler used to apply the changes */
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Names of custom contacts without a known contact id, looked up on the first sync */
+    private static List<String> unknownNames = Collections.emptyList();
+
+    /** Contact ids of custom contacts without a known lookup key. Only used on the sync thread */
+    private static final ArrayList<Long> unknownIds = new ArrayList<>();
+
+    /** Whether the address book observer is registered */
+    private static boolean observing = false;
+
+    /** Runs a sync on the background thread */
+    private static final Runnable syncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    /**
+     * Start observing the address book and run an initial sync. Does nothing if already started.
+     * If the contacts permission is not granted yet, call again once it is. Main thread only.
+     */
+    public static void start(Context ctx) {
+        if (appContext == null) {
+            appContext = ctx.getApplicationContext();
+            unknownNames = ContactsManager.getNamesWithoutContactId(appContext);
+
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            syncHandler = new Handler(thread.getLooper());
+            identify(ContactsManager.getContactIdsWithoutLookupKey(appContext));
+        }
+        if (observing || !hasPermission()) return;
+
+        appContext.getContentResolver().registerContentObserver(
+                ContactsContract.Contacts.CONTENT_URI, true, new ContentObserver(syncHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        requestSync();
+                    }
+                });
+        observing = true;
+        requestSync();
+    }
+
+    /**
+     * Read the lookup keys and phone numbers of contacts on the next sync, for example right
+     * after they were imported. Does nothing if the sync was not started yet; the contacts are
+     * then picked up once it is. Main thread only.
+     * @param contactIds Contact ids of custom contacts
+     */
+    public static void identify(final List<Long> contactIds) {
+        if (syncHandler == null || contactIds.isEmpty()) return;
+        syncHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                unknownIds.addAll(contactIds);
+            }
+        });
+        if (observing) requestSync();
+    }
+
+    /**
+     * Schedule a sync, replacing one that is already scheduled.
+     */
+    private static void requestSync() {
+        syncHandler.removeCallbacks(syncRunnable);
+        syncHandler.postDelayed(syncRunnable, SYNC_DELAY_MS);
+    }
+
+    /**
+     * Query changed contacts and hand them to the main thread. Runs on the background thread.
+     */
+    private static void sync() {
+        if (!hasPermission()) return;
+
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+        long watermark = prefs.getLong(PREF_WATERMARK, 0);
+        final ArrayList<ContactInfo> updates = new ArrayList<>();
+        final long newest;
+
+        try {
+            if (watermark == 0) {
+                newest = queryNewestTimestamp();
+                for (int i = 0; i < unknownNames.size(); i += MAX_SELECTION_ARGS) {
+                    List<String> names = unknownNames.subList(i,
+                            Math.min(unknownNames.size(), i + MAX_SELECTION_ARGS));
+                    query(inSelection(ContactsContract.Contacts.DISPLAY_NAME, names.size()),
+                            names.toArray(new String[0]), updates);
+                }
+                unknownNames = Collections.emptyList();
+            } else {
+                newest = Math.max(watermark, query(
+                        ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?",
+                        new String[]{String.valueOf(watermark)}, updates));
+            }
+            for (int i = 0; i < unknownIds.size(); i += MAX_SELECTION_ARGS) {
+                List<Long> ids = unknownIds.subList(i,
+                        Math.min(unknownIds.size(), i + MAX_SELECTION_ARGS));
+                query(inSelection(ContactsContract.Contacts._ID, ids.size()), toArgs(ids),
+                        updates);
+            }
+            unknownIds.clear();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to sync contacts: " + e.toString());
+            return;
+        }
+
+        if (newest == watermark && updates.isEmpty()) return;
+
+        if (!updates.isEmpty())
+            Log.d(TAG, updates.size() + " address book contacts changed since " + watermark);
+        // the watermark only moves once the changes are stored, so they are read again if the
+        // process dies before that
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!updates.isEmpty()) ContactsManager.applyContactUpdates(appContext, updates);
+                prefs.edit().putLong(PREF_WATERMARK, newest).apply();
+            }
+        });
+    }
+
+    /**
+     * Read the contacts matching a selection into updates.
+     * @return The newest CONTACT_LAST_UPDATED_TIMESTAMP among the matched contacts, 0 if none
+     */
+    private static long query(String selection, String[] args, List<ContactInfo> updates) {
+        long newest = 0;
+        ContentResolver resolver = appContext.getContentResolver();
+        Cursor cursor = resolver.query(ContactsContract.Contacts.CONTENT_URI, PROJECTION,
+                selection, args, null);
+        if (cursor == null) return 0;
+        ArrayList<Long> ids = new ArrayList<>();
+        ArrayList<String[]> rows = new ArrayList<>();
+        ArrayList<Long> updated = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+                rows.add(new String[]{cursor.getString(1), cursor.getString(2),
+                        cursor.getString(4)});
+                updated.add(cursor.getLong(3));
+                newest = Math.max(newest, cursor.getLong(3));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        LongHashMap<long[]> numbers = queryNumbers(ids);
+        for (int i = 0; i < ids.size(); i++) {
+            long[] n = numbers.get(ids.get(i));
+            // sorted, so unchanged numbers compare equal to the stored ones
+            if (n != null) Arrays.sort(n);
+            String[] row = rows.get(i);
+            updates.add(new ContactInfo(ids.get(i), row[0], row[1], updated.get(i), row[2],
+                    n == null ? new long[0] : n));
+        }
+        return newest;
+    }
+
+    /**
+     * Read the phone numbers of contacts as E.164 digits.
+     * @return The distinct numbers of each contact, by contact id. Contacts without valid
+     *         numbers are missing
+     */
+    private static LongHashMap<long[]> queryNumbers(List<Long> contactIds) {
+        LongHashMap<long[]> numbers = new LongHashMap<>();
+        ContentResolver resolver = appContext.getContentResolver();
+        for (int i = 0; i < contactIds.size(); i += MAX_SELECTION_ARGS) {
+            List<Long> ids = contactIds.subList(i,
+                    Math.min(contactIds.size(), i + MAX_SELECTION_ARGS));
+            Cursor cursor = resolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                    PHONE_PROJECTION,
+                    inSelection(ContactsContract.CommonDataKinds.Phone.CONTACT_ID, ids.size()),
+                    toArgs(ids), null);
+            if (cursor == null) continue;
+            try {
+                while (cursor.moveToNext()) {
+                    String raw = cursor.getString(1) != null ? cursor.getString(1)
+                            : cursor.getString(2);
+                    long number = ContactsManager.parseNumber(appContext, raw);
+                    if (number == 0) continue;
+
+                    long contactId = cursor.getLong(0);
+                    long[] known = numbers.get(contactId);
+                    if (known == null) {
+                        numbers.put(contactId, new long[]{number});
+                    } else if (indexOf(known, number) < 0) {
+                        long[] grown = Arrays.copyOf(known, known.length + 1);
+                        grown[known.length] = number;
+                        numbers.put(contactId, grown);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * Returns a selection "column IN (?,...,?)" with count arguments.
+     */
+    private static String inSelection(String column, int count) {
+        StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int j = 0; j < count; j++) selection.append(j == 0 ? "?" : ",?");
+        return selection.append(")").toString();
+    }
+
+    /**
+     * Returns ids as selection arguments.
+     */
+    private static String[] toArgs(List<Long> ids) {
+        String[] args = new String[ids.size()];
+        for (int j = 0; j < args.length; j++) args[j] = String.valueOf(ids.get(j));
+        return args;
+    }
+
+    /**
+     * Returns the index of a value in an array, or -1.
+     */
+    private static int indexOf(long[] array, long value) {
+        for (int j = 0; j < array.length; j++) if (array[j] == value) return j;
+        return -1;
+    }
+
+    /**
+     * Only the first row of the descending sort is read, the provider does not guarantee that a
+     * LIMIT appended to the sort order is honored.
+     * @return The newest CONTACT_LAST_UPDATED_TIMESTAMP in the address book, 0 if it is empty
+     */
+    private static long queryNewestTimestamp() {
+        Cursor cursor = appContext.getContentResolver().query(ContactsContract.Contacts.CONTENT_URI,
+                new String[]{ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP}, null, null,
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " DESC");
+        if (cursor == null) return 0;
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return True if the app may read contacts
+     */
+    private static boolean hasPermission() {
+        return ContextCompat.checkSelfPermission(appContext, Manifest.permission.READ_CONTACTS)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+}
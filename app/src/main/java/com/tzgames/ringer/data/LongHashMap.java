@@ -0,0 +1,144 @@
+package com.tzgames.ringer.data;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from primitive long keys to objects. Keys live in a plain long[] and collisions are
+ * resolved by linear probing, so a lookup does not box the key or follow entry pointers.
+ * Removing re-inserts the following run of the probe sequence, so no tombstones pile up.
+ *
+ * Not thread safe.
+ * @param <V> Type of the values. Null values are not allowed
+ */
+class LongHashMap<V> {
+    /** Initial number of slots. Always a power of two */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Key slots. A slot is free if its value is null */
+    private long[] keys;
+
+    /** Value slots, parallel to keys */
+    private Object[] values;
+
+    /** Number of entries */
+    private int size = 0;
+
+    LongHashMap() {
+        keys = new long[INITIAL_CAPACITY];
+        values = new Object[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Returns the value of a key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) return (V) values[i];
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the key has a value.
+     */
+    boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Set the value of a key.
+     * @return The previous value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) throw new NullPointerException("LongHashMap does not allow null values");
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        // keep the load factor at or below 1/2 so probe runs stay short
+        if (++size * 2 > keys.length) resize(keys.length * 2);
+        return null;
+    }
+
+    /**
+     * Remove a key.
+     * @return The removed value, or null if the key had none
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) break;
+        }
+        if (values[i] == null) return null;
+
+        V old = (V) values[i];
+        values[i] = null;
+        size--;
+
+        // move back entries of the same run that can no longer be reached past the hole
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (reachable) continue;
+            keys[i] = keys[j];
+            values[i] = values[j];
+            values[j] = null;
+            i = j;
+        }
+        return old;
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Rehash all entries into a table with the given number of slots.
+     */
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == null) continue;
+            int i = slot(oldKeys[j], mask);
+            while (values[i] != null) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /**
+     * Returns the home slot of a key. Keys are mixed first since phone numbers and ids are
+     * far from uniformly distributed in their low bits.
+     */
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,74 @@
+package com.tzgames.ringer.data;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of primitive longs that holds a vibration pattern while it is being recorded.
+ * Appending is amortized O(1) and does not box, so patterns with hundreds of taps stay cheap.
+ */
+public class PatternBuffer {
+    /** Initial capacity. Enough for a typical pattern of a few taps */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Backing array. Only the first size entries are used */
+    private long[] values = new long[INITIAL_CAPACITY];
+
+    /** Number of timings in the pattern */
+    private int size = 0;
+
+    /** Sum of all timings in the pattern */
+    private long total = 0;
+
+    /**
+     * Append a timing to the end of the pattern, growing the backing array if needed.
+     */
+    public void add(long value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+        total += value;
+    }
+
+    /**
+     * Remove the last timing of the pattern. Does nothing if the pattern is empty.
+     */
+    public void removeLast() {
+        if (size > 0) total -= values[--size];
+    }
+
+    /**
+     * Remove all timings. Keeps the backing array for reuse.
+     */
+    public void clear() {
+        size = 0;
+        total = 0;
+    }
+
+    /**
+     * Returns the number of timings in the pattern
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the total duration of the pattern in milliseconds
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Returns the timing at the given index
+     */
+    public long get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException(index + " >= " + size);
+        return values[index];
+    }
+
+    /**
+     * Returns a copy of the pattern, ready to be played
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,214 @@
+package com.tzgames.ringer.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of ringtone titles by ringtone URI. Resolving a title is a content provider query, so it
+ * is done once per URI on a background thread instead of for every list row on the main thread.
+ * Registered listeners are told on the main thread when a title got resolved.
+ *
+ * The cache is cleared when the media store or the system notification sound changes, since
+ * titles (and what the "Default" URI points to) may have changed with it. Resolves that were
+ * started before the cache was cleared are dropped, so they can not put an old title back.
+ */
+public class RingtoneTitleCache {
+    /** Debug Tag */
+    private static final String TAG = "RingtoneTitleCache";
+
+    /**
+     * Callback for when titles become available.
+     */
+    public interface OnTitleResolvedListener {
+        /**
+         * Called on the main thread when the title of a ringtone was resolved.
+         * @param ringtoneURI The ringtone whose title is now cached. Null if the whole cache was
+         *                    invalidated and all titles should be requested again.
+         */
+        void onTitleResolved(String ringtoneURI);
+    }
+
+    /** A resolved title. */
+    private static class Title {
+        /** Title as reported by the Ringtone */
+        final String title;
+
+        /** Title with "Default" / "ringtone" decorations removed, used in the contacts list */
+        final String shortTitle;
+
+        Title(String _title) {
+            title = _title;
+            shortTitle = shorten(_title);
+        }
+    }
+
+    /** Resolved titles by ringtone URI */
+    private static final ConcurrentHashMap<String, Title> titles = new ConcurrentHashMap<>();
+
+    /** URIs that are currently being resolved. Only touched on the main thread */
+    private static final HashSet<String> pending = new HashSet<>();
+
+    /** Listeners that are told about resolved titles. Only touched on the main thread */
+    private static final ArrayList<OnTitleResolvedListener> listeners = new ArrayList<>();
+
+    /** Incremented every time the cache is cleared. Only touched on the main thread */
+    private static int generation = 0;
+
+    /** Main thread handler used to deliver results and observer callbacks */
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Resolves titles one at a time. The thread goes away while idle. */
+    private static ExecutorService executor;
+
+    /** Application context used for queries and to register the observer */
+    private static Context appContext;
+
+    /**
+     * Clears all titles when the media store or notification sound settings change.
+     */
+    private static final ContentObserver invalidator = new ContentObserver(mainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            generation++;
+            pending.clear();
+            titles.clear();
+            for (OnTitleResolvedListener l : new ArrayList<>(listeners)) l.onTitleResolved(null);
+        }
+    };
+
+    /**
+     * Lazily create the executor and start observing the media store.
+     */
+    private static void init(Context ctx) {
+        if (appContext != null) return;
+        appContext = ctx.getApplicationContext();
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1,
+                5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+
+        try {
+            appContext.getContentResolver().registerContentObserver(
+                    MediaStore.Audio.Media.INTERNAL_CONTENT_URI, true, invalidator);
+            appContext.getContentResolver().registerContentObserver(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, invalidator);
+            appContext.getContentResolver().registerContentObserver(
+                    Settings.System.getUriFor(Settings.System.NOTIFICATION_SOUND), false, invalidator);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to observe media store: " + e.toString());
+        }
+    }
+
+    /**
+     * Register a listener for resolved titles. Must be called on the main thread.
+     */
+    public static void addListener(OnTitleResolvedListener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener added with addListener. Must be called on the main thread.
+     */
+    public static void removeListener(OnTitleResolvedListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the title of a ringtone if it is cached. Otherwise starts resolving it in the
+     * background and returns null; listeners are told once it is available. Main thread only.
+     * @param ringtoneURI The URI string of the ringtone, or NONE_RINGTONE_ID
+     */
+    public static String getTitle(Context ctx, String ringtoneURI) {
+        Title t = lookup(ctx, ringtoneURI);
+        return t == null ? null : t.title;
+    }
+
+    /**
+     * Same as getTitle, but with "Default" and "ringtone" decorations removed, e.g.
+     * "Default ringtone (Helios)" becomes "Helios".
+     */
+    public static String getShortTitle(Context ctx, String ringtoneURI) {
+        Title t = lookup(ctx, ringtoneURI);
+        return t == null ? null : t.shortTitle;
+    }
+
+    /**
+     * Returns the cached Title or schedules resolving it.
+     */
+    private static Title lookup(Context ctx, final String ringtoneURI) {
+        Title t = titles.get(ringtoneURI);
+        if (t != null) return t;
+
+        init(ctx);
+        if (!pending.add(ringtoneURI)) return null;
+        final int started = generation;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Title resolved = resolve(ringtoneURI);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // cache was cleared meanwhile, the title may be outdated
+                        if (started != generation) return;
+                        pending.remove(ringtoneURI);
+                        if (resolved == null) return;
+                        titles.put(ringtoneURI, resolved);
+                        for (OnTitleResolvedListener l : new ArrayList<>(listeners))
+                            l.onTitleResolved(ringtoneURI);
+                    }
+                });
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Query the title of a ringtone. Runs on the background thread.
+     */
+    private static Title resolve(String ringtoneURI) {
+        if (ringtoneURI.equals(ContactsManager.NONE_RINGTONE_ID))
+            return new Title(ContactsManager.NONE_RINGTONE_ID);
+        try {
+            Ringtone ringtone = RingtoneManager.getRingtone(appContext, Uri.parse(ringtoneURI));
+            if (ringtone == null) return null;
+            return new Title(ringtone.getTitle(appContext));
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to resolve title of " + ringtoneURI + ": " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Strip "Default" / "ringtone" decorations from a title.
+     */
+    private static String shorten(String tone) {
+        if (tone.toLowerCase().contains("default")) {
+            tone = tone.replace("default", "");
+            tone = tone.replace("Default", "");
+            tone = tone.replace("(", "");
+            tone = tone.replace(")", "");
+            tone = tone.replace("ringtone", "");
+            tone = tone.replace("Ringtone", "");
+            tone = tone.trim();
+        }
+        return tone;
+    }
+}
@@ -0,0 +1,215 @@
+package com.tzgames.ringer.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compiled form of the alert rules. All keyword rules are merged into one Aho-Corasick automaton,
+ * so the message text is scanned once no matter how many keywords there are. Wildcard rules on
+ * the sender and the conversation title are checked with a small glob matcher ('*' matches any
+ * run of characters, '?' matches one character). All matching ignores case.
+ *
+ * Rules are identified by their index; if several rules match, the lowest index wins.
+ * Immutable once built, so it can be shared between threads.
+ */
+class RuleMatcher {
+    /** Rule matches if the message text contains the pattern */
+    static final int TYPE_KEYWORD = 0;
+
+    /** Rule matches if the sender matches the wildcard pattern */
+    static final int TYPE_SENDER = 1;
+
+    /** Rule matches if the conversation (group chat) title matches the wildcard pattern */
+    static final int TYPE_CONVERSATION = 2;
+
+    /** Marks "no rule" in output and as match result */
+    private static final int NONE = Integer.MAX_VALUE;
+
+    /** Transition characters of each automaton state, sorted */
+    private final char[][] edgeChars;
+
+    /** Target state of each transition, parallel to edgeChars */
+    private final int[][] edgeTargets;
+
+    /** Failure link of each state */
+    private final int[] fail;
+
+    /** Lowest rule index of all keywords that end in each state, including via failure links */
+    private final int[] output;
+
+    /** Wildcard rules: type, lowercased pattern and rule index */
+    private final int[] wildcardTypes;
+    private final String[] wildcardPatterns;
+    private final int[] wildcardRules;
+
+    /**
+     * Compile the rules.
+     * @param types Type of each rule, one of the TYPE_ constants
+     * @param patterns Pattern of each rule, parallel to types
+     */
+    RuleMatcher(int[] types, String[] patterns) {
+        // build the trie of all keywords, with growable per-state edge lists
+        List<StringBuilder> chars = new ArrayList<>();
+        List<int[]> targets = new ArrayList<>();
+        List<Integer> outs = new ArrayList<>();
+        chars.add(new StringBuilder());
+        targets.add(new int[0]);
+        outs.add(NONE);
+
+        List<Integer> wTypes = new ArrayList<>();
+        List<String> wPatterns = new ArrayList<>();
+        List<Integer> wRules = new ArrayList<>();
+
+        for (int rule = 0; rule < types.length; rule++) {
+            String pattern = patterns[rule].toLowerCase();
+            if (types[rule] != TYPE_KEYWORD) {
+                wTypes.add(types[rule]);
+                wPatterns.add(pattern);
+                wRules.add(rule);
+                continue;
+            }
+            if (pattern.isEmpty()) continue;
+
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                int edge = chars.get(state).indexOf(String.valueOf(c));
+                if (edge >= 0) {
+                    state = targets.get(state)[edge];
+                    continue;
+                }
+                int next = chars.size();
+                chars.add(new StringBuilder());
+                targets.add(new int[0]);
+                outs.add(NONE);
+                chars.get(state).append(c);
+                int[] t = Arrays.copyOf(targets.get(state), targets.get(state).length + 1);
+                t[t.length - 1] = next;
+                targets.set(state, t);
+                state = next;
+            }
+            outs.set(state, Math.min(outs.get(state), rule));
+        }
+
+        // freeze edges sorted by character so lookups can binary search
+        int n = chars.size();
+        edgeChars = new char[n][];
+        edgeTargets = new int[n][];
+        output = new int[n];
+        for (int s = 0; s < n; s++) {
+            char[] c = chars.get(s).toString().toCharArray();
+            int[] t = targets.get(s);
+            Integer[] order = new Integer[c.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            final char[] key = c;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return key[a] - key[b];
+                }
+            });
+            edgeChars[s] = new char[c.length];
+            edgeTargets[s] = new int[c.length];
+            for (int i = 0; i < order.length; i++) {
+                edgeChars[s][i] = c[order[i]];
+                edgeTargets[s][i] = t[order[i]];
+            }
+            output[s] = outs.get(s);
+        }
+
+        // breadth first: failure links, and outputs merged along them
+        fail = new int[n];
+        int[] queue = new int[n];
+        int head = 0, tail = 0;
+        for (int target : edgeTargets[0]) queue[tail++] = target;
+        while (head < tail) {
+            int s = queue[head++];
+            for (int i = 0; i < edgeChars[s].length; i++) {
+                int next = edgeTargets[s][i];
+                int f = fail[s];
+                int to;
+                while ((to = step(f, edgeChars[s][i])) < 0 && f != 0) f = fail[f];
+                fail[next] = to >= 0 && to != next ? to : 0;
+                output[next] = Math.min(output[next], output[fail[next]]);
+                queue[tail++] = next;
+            }
+        }
+
+        wildcardTypes = new int[wTypes.size()];
+        wildcardPatterns = wPatterns.toArray(new String[0]);
+        wildcardRules = new int[wRules.size()];
+        for (int i = 0; i < wildcardTypes.length; i++) {
+            wildcardTypes[i] = wTypes.get(i);
+            wildcardRules[i] = wRules.get(i);
+        }
+    }
+
+    /**
+     * Find the matching rule with the lowest index.
+     * @param sender Sender of the message. May be null
+     * @param conversation Title of the group chat. May be null
+     * @param text Text of the message. May be null
+     * @return The index of the rule, or -1 if none matches
+     */
+    int match(String sender, String conversation, CharSequence text) {
+        int best = NONE;
+        for (int i = 0; i < wildcardRules.length && wildcardRules[i] < best; i++) {
+            String subject = wildcardTypes[i] == TYPE_SENDER ? sender : conversation;
+            if (subject != null && glob(wildcardPatterns[i], subject.toLowerCase()))
+                best = wildcardRules[i];
+        }
+
+        if (text != null && edgeChars[0].length > 0) {
+            int state = 0;
+            for (int i = 0; i < text.length() && best > 0; i++) {
+                char c = Character.toLowerCase(text.charAt(i));
+                int next;
+                while ((next = step(state, c)) < 0 && state != 0) state = fail[state];
+                state = next < 0 ? 0 : next;
+                best = Math.min(best, output[state]);
+            }
+        }
+        return best == NONE ? -1 : best;
+    }
+
+    /**
+     * Returns the state reached from state s with character c, or -1 if there is no edge.
+     */
+    private int step(int s, char c) {
+        char[] keys = edgeChars[s];
+        int lo = 0, hi = keys.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < c) lo = mid + 1;
+            else if (keys[mid] > c) hi = mid - 1;
+            else return edgeTargets[s][mid];
+        }
+        return -1;
+    }
+
+    /**
+     * Glob match with '*' and '?'. Both strings must already be lowercase.
+     */
+    static boolean glob(String pattern, String s) {
+        int p = 0, i = 0, star = -1, mark = 0;
+        while (i < s.length()) {
+            char c = p < pattern.length() ? pattern.charAt(p) : 0;
+            if (p < pattern.length() && (c == '?' || c == s.charAt(i))) {
+                p++;
+                i++;
+            } else if (p < pattern.length() && c == '*') {
+                star = p++;
+                mark = i;
+            } else if (star >= 0) {
+                p = star + 1;
+                i = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') p++;
+        return p == pattern.length();
+    }
+}
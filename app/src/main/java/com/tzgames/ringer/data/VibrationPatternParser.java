@@ -0,0 +1,160 @@
+package com.tzgames.ringer.data;
+
+/**
+ * Parser for vibration patterns typed by the user, e.g. "0, 200, 100, 400". Works in a single
+ * pass over the CharSequence without creating substrings, and appends straight into a
+ * PatternBuffer.
+ *
+ * Values must be non-negative decimal numbers separated by commas; whitespace around values is
+ * ignored and a single trailing comma is allowed. A pattern may have at most MAX_SEGMENTS
+ * segments and last at most MAX_DURATION_MS in total. Zero-length segments (other than a leading
+ * zero delay) are dropped and the segments around them are merged, since two adjacent pauses or
+ * two adjacent vibrations are the same as a single, longer one. A pattern that lasts 0 ms in
+ * total, e.g. "0, 0", is rejected since it can not be played.
+ *
+ * If parsing fails, getError() and getErrorOffset() tell why and where.
+ */
+public class VibrationPatternParser {
+    /** Max number of segments (pauses and vibrations) in a pattern */
+    public static final int MAX_SEGMENTS = 1000;
+
+    /** Max total duration of a pattern in milliseconds */
+    public static final long MAX_DURATION_MS = 60 * 1000;
+
+    /** Parsing succeeded */
+    public static final int ERROR_NONE = 0;
+
+    /** Unexpected character, empty segment, or a pattern that is empty or lasts 0 ms */
+    public static final int ERROR_SYNTAX = 1;
+
+    /** The pattern has more than MAX_SEGMENTS segments */
+    public static final int ERROR_TOO_MANY_SEGMENTS = 2;
+
+    /** The pattern is longer than MAX_DURATION_MS */
+    public static final int ERROR_TOO_LONG = 3;
+
+    /** Reason the last parse / append failed. One of the ERROR_ constants */
+    private int error = ERROR_NONE;
+
+    /** Offset into the text where the last parse / append failed. -1 if it did not fail */
+    private int errorOffset = -1;
+
+    /**
+     * Parse a pattern.
+     * @param text The text to parse
+     * @param out Receives the normalized pattern. Cleared first
+     * @return True if the text is a valid pattern. False otherwise; see getError()
+     */
+    public boolean parse(CharSequence text, PatternBuffer out) {
+        out.clear();
+        error = ERROR_NONE;
+        errorOffset = -1;
+
+        int length = text.length();
+        int i = 0;
+        boolean expectValue = true;
+        while (true) {
+            while (i < length && Character.isWhitespace(text.charAt(i))) i++;
+            if (i == length) break;
+
+            char c = text.charAt(i);
+            if (!expectValue) {
+                // values are separated by commas
+                if (c != ',') return fail(ERROR_SYNTAX, i);
+                i++;
+                expectValue = true;
+                continue;
+            }
+
+            if (c < '0' || c > '9') return fail(ERROR_SYNTAX, i);
+            int start = i;
+            long value = 0;
+            while (i < length && (c = text.charAt(i)) >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > MAX_DURATION_MS) return fail(ERROR_TOO_LONG, start);
+                i++;
+            }
+            if (!append(out, value, start)) return false;
+            expectValue = false;
+        }
+
+        if (out.total() == 0) return fail(ERROR_SYNTAX, i);
+        return true;
+    }
+
+    /**
+     * Append one segment to a pattern, merging it into the previous segment if the segment in
+     * between has length zero, and enforcing the bounds. Also used while recording a pattern.
+     * @param out The pattern to append to
+     * @param value Length of the segment in milliseconds. Must not be negative
+     * @param offset Where the segment came from, reported by getErrorOffset() if it is rejected
+     * @return True if appended. False if the pattern would exceed the bounds
+     */
+    public boolean append(PatternBuffer out, long value, int offset) {
+        int n = out.size();
+        if (n > 1 && out.get(n - 1) == 0) {
+            // drop the zero-length segment and extend the segment before it instead
+            out.removeLast();
+            value += out.get(n - 2);
+            out.removeLast();
+        }
+        if (out.size() >= MAX_SEGMENTS) return fail(ERROR_TOO_MANY_SEGMENTS, offset);
+        if (out.total() + value > MAX_DURATION_MS) return fail(ERROR_TOO_LONG, offset);
+        out.add(value);
+        return true;
+    }
+
+    /**
+     * Returns the reason the last parse / append failed. One of the ERROR_ constants
+     */
+    public int getError() {
+        return error;
+    }
+
+    /**
+     * Returns the offset where the last parse / append failed. -1 if it did not fail
+     */
+    public int getErrorOffset() {
+        return errorOffset;
+    }
+
+    /**
+     * Remember why and where parsing failed.
+     * @return Always false, so callers can return the result directly
+     */
+    private boolean fail(int _error, int offset) {
+        error = _error;
+        errorOffset = offset;
+        return false;
+    }
+
+    /**
+     * Copy a pattern into an array that can be played, dropping a trailing zero-length segment.
+     */
+    public static long[] toPattern(PatternBuffer buffer) {
+        long[] pattern = buffer.toArray();
+        int n = pattern.length;
+        if (n > 1 && pattern[n - 1] == 0) {
+            long[] trimmed = new long[n - 1];
+            System.arraycopy(pattern, 0, trimmed, 0, n - 1);
+            return trimmed;
+        }
+        return pattern;
+    }
+
+    /**
+     * Validate and normalize a pattern that is already an array of longs.
+     * @return The normalized pattern, or null if it is empty, lasts 0 ms, has negative values or
+     *         exceeds the bounds
+     */
+    public static long[] normalize(long[] times) {
+        if (times == null || times.length == 0) return null;
+        VibrationPatternParser parser = new VibrationPatternParser();
+        PatternBuffer buffer = new PatternBuffer();
+        for (int i = 0; i < times.length; i++) {
+            if (times[i] < 0 || !parser.append(buffer, times[i], i)) return null;
+        }
+        if (buffer.total() == 0) return null;
+        return toPattern(buffer);
+    }
+}
@@ -3,6 +3,8 @@ package com.tzgames.ringer.data;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
 import android.os.Build;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
@@ -10,6 +12,7 @@ import android.os.Vibrator;
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
+import androidx.preference.PreferenceManager;
 import android.util.Log;
 
 import com.tzgames.ringer.R;
@@ -20,8 +23,11 @@ import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -29,8 +35,16 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 /**
  * Class in charge of vibrations. Maintains two lists:
  *      - customVibrations : user defined / created vibrations that are saved to disk
- *      - vibrations : the collection of default vibrations AND customVibrations. Not saved to disk.
+ *      - registry : the collection of default vibrations AND customVibrations. Not saved to disk.
  * This class is used to add vibrations, remove vibrations, and to actually trigger vibrations.
+ *
+ * The registry is an immutable snapshot that is replaced as a whole whenever vibrations are added
+ * or removed, so it can be read from any thread (e.g. the notification listener) without locking.
+ * Each entry precomputes what playback needs: the VibrationEffect, total duration and channel id.
+ *
+ * On SDK >= 26 vibrations are played by posting to the vibration's notification channel. In direct
+ * mode (see setDirectVibration) the precomputed effect is played on the Vibrator instead, falling
+ * back to the channel route if that is not possible, e.g. while do not disturb is on.
  */
 public class VibrationsManager {
     /** Debug Tag */
@@ -54,25 +68,37 @@ public class VibrationsManager {
     /** Read / Write lock */
     private static final ReadWriteLock lock = new ReentrantReadWriteLock();
 
-    /** HashMap that stores custom user vibrations */
+    /** Guards customVibrations and replacing the registry */
+    private static final Object writeLock = new Object();
+
+    /** HashMap that stores custom user vibrations. Only touched while holding writeLock */
     private static LinkedHashMap<String, VibrationPattern> customVibrations;
 
-    /** HashMap that stores default vibrations. Initialized with all default vibration patterns */
-    private static final LinkedHashMap<String, VibrationPattern> vibrations = new LinkedHashMap<String, VibrationPattern>(){{
-            put(DEFAULT_VIBRATION,      new VibrationPattern(new long[]{DELAY, 250, 250, 250}));
-            put(NONE_VIBRATION,         new VibrationPattern(new long[]{}));
-            put("Short",                new VibrationPattern(new long[]{DELAY, 300}));
-            put("Medium",               new VibrationPattern(new long[]{DELAY, 500}));
-            put("Long",                 new VibrationPattern(new long[]{DELAY, 1200}));
-            put("Short Double Skip",    new VibrationPattern(new long[]{DELAY, 150, 150, 150}));
-            put("Double Skip",          new VibrationPattern(new long[]{DELAY, 300, 300, 300}));
-            put("Short Multi Skip",     new VibrationPattern(new long[]{DELAY, 200, 50, 200, 100, 200, 150, 200}));
-            put("Multi Skip",           new VibrationPattern(new long[]{DELAY, 300, 75, 300, 150, 300, 175, 300}));
-            put("Skippidy Skip",        new VibrationPattern(new long[]{DELAY, 300, 150, 200, 200, 500, 50, 100}));
-            put("Short Short Long",     new VibrationPattern(new long[]{DELAY, 70, 70, 70, 55, 70, 55, 625}));
-            put("Long Short Short",     new VibrationPattern(new long[]{DELAY, 220, 90, 60, 75, 70, 75, 60}));
-            put("Staccato",             new VibrationPattern(new long[]{DELAY, 70, 70, 70, 70, 70, 70, 70, 70}));
-            put("Double Staccato",      new VibrationPattern(new long[]{DELAY, 75, 85, 60, 70, 70, 50, 50, 430, 70, 90, 70, 70, 60, 50, 50}));
+    /** Current snapshot of all vibrations. Null until the data file was read */
+    private static volatile Registry registry;
+
+    /** Attributes of directly played vibrations, so they are treated like notification vibrations */
+    private static final AudioAttributes NOTIFICATION_ATTRIBUTES = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_NOTIFICATION)
+            .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+            .build();
+
+    /** Default vibrations, in display order */
+    private static final LinkedHashMap<String, long[]> defaultVibrations = new LinkedHashMap<String, long[]>(){{
+            put(DEFAULT_VIBRATION,      new long[]{DELAY, 250, 250, 250});
+            put(NONE_VIBRATION,         new long[]{});
+            put("Short",                new long[]{DELAY, 300});
+            put("Medium",               new long[]{DELAY, 500});
+            put("Long",                 new long[]{DELAY, 1200});
+            put("Short Double Skip",    new long[]{DELAY, 150, 150, 150});
+            put("Double Skip",          new long[]{DELAY, 300, 300, 300});
+            put("Short Multi Skip",     new long[]{DELAY, 200, 50, 200, 100, 200, 150, 200});
+            put("Multi Skip",           new long[]{DELAY, 300, 75, 300, 150, 300, 175, 300});
+            put("Skippidy Skip",        new long[]{DELAY, 300, 150, 200, 200, 500, 50, 100});
+            put("Short Short Long",     new long[]{DELAY, 70, 70, 70, 55, 70, 55, 625});
+            put("Long Short Short",     new long[]{DELAY, 220, 90, 60, 75, 70, 75, 60});
+            put("Staccato",             new long[]{DELAY, 70, 70, 70, 70, 70, 70, 70, 70});
+            put("Double Staccato",      new long[]{DELAY, 75, 85, 60, 70, 70, 50, 50, 430, 70, 90, 70, 70, 60, 50, 50});
     }};
 
     /**
@@ -85,6 +111,127 @@ public class VibrationsManager {
         }
     }
 
+    /**
+     * An immutable registry entry. Everything needed to play the vibration is computed once when
+     * the entry is created.
+     */
+    public static final class Vibration {
+        /** Name of the vibration */
+        public final String name;
+
+        /** The pattern. Never modified */
+        private final long[] timestamps;
+
+        /** Total duration of the pattern in milliseconds */
+        public final long duration;
+
+        /** Id of the notification channel that plays this vibration (SDK >= 26) */
+        public final String channelId;
+
+        /** Precomputed VibrationEffect on SDK >= 26, null otherwise, if the pattern is empty or if
+         * the system rejected it. Typed as Object so this class still loads where VibrationEffect
+         * does not exist. */
+        private final Object effect;
+
+        Vibration(String _name, long[] _timestamps) {
+            name = _name;
+            timestamps = _timestamps;
+            long d = 0;
+            for (long t : _timestamps) d += t;
+            duration = d;
+            channelId = _name;
+            effect = createEffect(_name, _timestamps);
+        }
+
+        /**
+         * Build the VibrationEffect of a pattern.
+         * @return The effect, or null if there is none or the system rejected the pattern
+         */
+        private static Object createEffect(String name, long[] timestamps) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || timestamps.length == 0)
+                return null;
+            try {
+                return VibrationEffect.createWaveform(timestamps, VibrationEffect.DEFAULT_AMPLITUDE);
+            } catch (Exception e) {
+                Log.e(TAG, "Invalid pattern for vibration " + name + ": " + e.toString());
+                return null;
+            }
+        }
+
+        /** Returns a copy of the pattern */
+        public long[] getPattern() {
+            return timestamps.clone();
+        }
+    }
+
+    /**
+     * Immutable snapshot of all vibrations, replaced as a whole on every change.
+     */
+    private static final class Registry {
+        /** Incremented every time a new registry is published */
+        final long version;
+
+        /** All vibrations by name, defaults first. Unmodifiable */
+        final Map<String, Vibration> vibrations;
+
+        Registry(long _version, LinkedHashMap<String, Vibration> _vibrations) {
+            version = _version;
+            vibrations = Collections.unmodifiableMap(_vibrations);
+        }
+    }
+
+    /**
+     * Build and publish a new registry from the default vibrations and customVibrations. Reuses
+     * the entries of the previous registry so their effects are not built again.
+     * Must hold writeLock.
+     */
+    private static void publishRegistry() {
+        publishRegistry(null);
+    }
+
+    /**
+     * Like publishRegistry(), but uses an entry that was already built for a new vibration.
+     * @param added The entry of the vibration just added to customVibrations. May be null
+     */
+    private static void publishRegistry(Vibration added) {
+        Registry old = registry;
+        LinkedHashMap<String, Vibration> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : defaultVibrations.entrySet())
+            entries.put(entry.getKey(), entryFor(old, added, entry.getKey(), entry.getValue()));
+        for (Map.Entry<String, VibrationPattern> entry : customVibrations.entrySet())
+            entries.put(entry.getKey(),
+                    entryFor(old, added, entry.getKey(), entry.getValue().timestamps));
+        registry = new Registry(old == null ? 1 : old.version + 1, entries);
+    }
+
+    /**
+     * Returns the added entry or the entry of the old registry if it has the same pattern,
+     * otherwise a new entry.
+     */
+    private static Vibration entryFor(Registry old, Vibration added, String name,
+                                      long[] timestamps) {
+        if (added != null && added.name.equals(name) && added.timestamps == timestamps)
+            return added;
+        Vibration v = old == null ? null : old.vibrations.get(name);
+        if (v != null && Arrays.equals(v.timestamps, timestamps)) return v;
+        return new Vibration(name, timestamps);
+    }
+
+    /**
+     * Returns the current registry, reading the data file first if needed.
+     */
+    private static Registry getRegistry(Context ctx) {
+        Registry r = registry;
+        if (r != null) return r;
+        synchronized (writeLock) {
+            if (registry == null) {
+                readDataFile(ctx);
+                publishRegistry();
+            }
+            return registry;
+        }
+    }
+
     /**
      *  Load data file that contains custom vibrations from disk; create it if not exist
       */
@@ -108,11 +255,7 @@ public class VibrationsManager {
                 customVibrations = (LinkedHashMap<String, VibrationPattern>) (objectInputStream.readObject());
                 objectInputStream.close();
                 inputStream.close();
-
-                // append custom vibrations to the overall vibration list
-                for (Map.Entry<String, VibrationPattern> entry : customVibrations.entrySet()) {
-                    vibrations.put(entry.getKey(), entry.getValue());
-                }
+                normalizeCustomVibrations();
             } else {
                 // Custom vibration file not found, intiialize empty hashmap
                 customVibrations = new LinkedHashMap<>();
@@ -129,6 +272,26 @@ public class VibrationsManager {
         }
     }
 
+    /**
+     * Run every loaded custom pattern through VibrationPatternParser.normalize. Older versions
+     * stored patterns without checking them, e.g. with negative values or without any non-zero
+     * value, which the system refuses to play. Such patterns are dropped.
+     */
+    private static void normalizeCustomVibrations() {
+        LinkedHashMap<String, VibrationPattern> valid = new LinkedHashMap<>();
+        for (Map.Entry<String, VibrationPattern> entry : customVibrations.entrySet()) {
+            long[] times = entry.getValue() == null ? null
+                    : VibrationPatternParser.normalize(entry.getValue().timestamps);
+            if (times == null) {
+                Log.e(TAG, "Dropping invalid custom vibration " + entry.getKey());
+                continue;
+            }
+            valid.put(entry.getKey(), Arrays.equals(times, entry.getValue().timestamps)
+                    ? entry.getValue() : new VibrationPattern(times));
+        }
+        customVibrations = valid;
+    }
+
     /**
      * Sets notificattion channels for each vibration in vibrations list. Each vibration will
      * get its own, named notification channel IF SDK >= 26. If SDK < 26, skip this function, and
@@ -147,15 +310,11 @@ public class VibrationsManager {
             return;
         }
 
-        if (customVibrations == null) readDataFile(context);
-
-        for (String s : vibrations.keySet()) {
-            VibrationPattern pattern = getVibrations(context).get(s);
-            if (pattern == null) continue;
-            NotificationChannel channel = new NotificationChannel(s, s,
+        for (Vibration v : getRegistry(context).vibrations.values()) {
+            NotificationChannel channel = new NotificationChannel(v.channelId, v.name,
                     NotificationManager.IMPORTANCE_DEFAULT);
-            channel.setDescription("Vibration: " + s);
-            channel.setVibrationPattern(pattern.timestamps);
+            channel.setDescription("Vibration: " + v.name);
+            channel.setVibrationPattern(v.timestamps);
             channel.setSound(null, null);
             channel.enableVibration(true);
             mNotificationManager.createNotificationChannel(channel);
@@ -184,26 +343,29 @@ public class VibrationsManager {
     /**
      * Function to add a new custom vibration pattern to the custom vibration pattern list.
      * @param name Name of the custom vibration pattern that should be added
-     * @param times The actual long[] times that define the pattern
+     * @param times The actual long[] times that define the pattern. Normalized and checked
+     *              against the bounds of VibrationPatternParser
      * @return True if the custom vibration pattern can be added. False, otherwise.
      */
     public static boolean addCustomVibration(Context ctx, String name, long[] times) {
-        if (customVibrations == null) readDataFile(ctx);
+        times = VibrationPatternParser.normalize(times);
+        if (times == null) return false;
 
-        // check for duplicate name entries
-        for (String s : vibrations.keySet()) {
-            if (name.equals(s)) return false;
-        }
-        for (String s : customVibrations.keySet()) {
-            if (name.equals(s)) return false;
-        }
+        synchronized (writeLock) {
+            // check for duplicate name entries
+            if (getRegistry(ctx).vibrations.containsKey(name)) return false;
 
-        // add vibration pattern
-        VibrationPattern vib = new VibrationPattern(times);
-        customVibrations.put(name, vib);
-        vibrations.put(name, vib);
+            // build the entry first, so a pattern the system rejects is never stored
+            Vibration vibration = new Vibration(name, times);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && vibration.effect == null)
+                return false;
+
+            // add vibration pattern
+            customVibrations.put(name, new VibrationPattern(vibration.timestamps));
+            publishRegistry(vibration);
+            writeDataFile(ctx);
+        }
         genNotificationChannels(ctx);
-        writeDataFile(ctx);
         return true;
     }
 
@@ -215,52 +377,140 @@ public class VibrationsManager {
      * @return True if removed succesfully. False, if the vibration pattern is not a custom vibration.
      */
     public static boolean removeCustomVibration(Context ctx, String  name) {
-        if (customVibrations.remove(name) != null) {
-            vibrations.remove(name);
+        synchronized (writeLock) {
+            getRegistry(ctx);
+            if (customVibrations.remove(name) == null) return false;
+            publishRegistry();
             writeDataFile(ctx);
-            ContactsManager.removeVibrationFromAllContacts(ctx, name);
-            return true;
         }
-        return false;
+        ContactsManager.removeVibrationFromAllContacts(ctx, name);
+        return true;
     }
 
     /**
-     * Returns the list of all current vibrations
-     * @return HashMap<Name of Vibration, VibrationPattern> of all vibrations
+     * Returns the names of all current vibrations, defaults first
      */
     @NonNull
-    public static HashMap<String, VibrationPattern> getVibrations(Context ctx) {
-        if (customVibrations == null)
-            readDataFile(ctx);
-        return vibrations;
+    public static List<String> getVibrationNames(Context ctx) {
+        return new ArrayList<>(getRegistry(ctx).vibrations.keySet());
+    }
+
+    /**
+     * Returns a vibration by name. Lock free, may be called from any thread.
+     * @return The vibration, or null if there is no vibration with that name
+     */
+    public static Vibration getVibration(Context ctx, String name) {
+        return getRegistry(ctx).vibrations.get(name);
+    }
+
+    /**
+     * Returns the version of the vibration registry. Changes whenever a vibration is added or
+     * removed.
+     */
+    public static long getVersion(Context ctx) {
+        return getRegistry(ctx).version;
     }
 
     /**
      * Plays the vibration given a vibratePattern object. Uses notification channels if SDK >= 26,
-     * uses deprecatd vibrate method otherwise.
+     * unless direct mode is enabled. Uses deprecatd vibrate method otherwise.
      * @param vibrateName The name of the vibration Pattern to be played
      */
     public static void vibrateByName(Context context, String vibrateName) {
         if (!vibrateName.equals(VibrationsManager.NONE_VIBRATION)) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                NotificationCompat.Builder builder = new NotificationCompat.Builder(context, vibrateName)
-                        .setSmallIcon(R.drawable.ic_notifications_active_black_24dp)
-                        .setTimeoutAfter(3000)
-                        .setAutoCancel(true);
-                NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
-                notificationManager.notify(1, builder.build());
-            }
-            else {
-                VibrationPattern pattern = getVibrations(context).get(vibrateName);
-                if (pattern != null)
-                    vibrate(context, pattern.timestamps);
-            }
+            Vibration vibration = getVibration(context, vibrateName);
+            if (vibration != null) play(context, vibration, 1);
+        }
+    }
+
+    /**
+     * Plays a registry entry like vibrateByName(Context, String), but posts the channel
+     * notification with the given id, so that vibrations played in a row do not replace each
+     * other's notification.
+     * @param vibration The vibration to play
+     * @param notificationId Id of the channel notification (SDK >= 26)
+     */
+    public static void play(Context context, Vibration vibration, int notificationId) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            if (isDirectVibration(context) && vibrateDirect(context, vibration)) return;
+
+            NotificationCompat.Builder builder = new NotificationCompat.Builder(context, vibration.channelId)
+                    .setSmallIcon(R.drawable.ic_notifications_active_black_24dp)
+                    .setTimeoutAfter(3000)
+                    .setAutoCancel(true);
+            NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+            notificationManager.notify(notificationId, builder.build());
+        }
+        else {
+            vibrate(context, vibration);
+        }
+    }
+
+    /**
+     * Play a vibration's precomputed effect on the Vibrator with notification attributes, without
+     * posting a notification. SDK >= 26 only.
+     * @return True if the vibration was handed to the Vibrator. False if direct vibration is not
+     *         possible right now (no vibrator, ringer silenced, do not disturb on, or rejected), so
+     *         the channel route should be used, which applies the user's do not disturb rules.
+     */
+    private static boolean vibrateDirect(Context context, Vibration vibration) {
+        if (vibration.effect == null) return false;
+        Vibrator vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+        AudioManager audio = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        NotificationManager notifications =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (vibrator == null || !vibrator.hasVibrator()) return false;
+        if (audio == null || audio.getRingerMode() == AudioManager.RINGER_MODE_SILENT) return false;
+        // any do not disturb mode may filter this vibration, only the channel route knows if so
+        if (notifications == null || notifications.getCurrentInterruptionFilter()
+                != NotificationManager.INTERRUPTION_FILTER_ALL) return false;
+
+        try {
+            vibrator.vibrate((VibrationEffect) vibration.effect, NOTIFICATION_ATTRIBUTES);
+        } catch (Exception e) {
+            Log.e(TAG, "Direct vibration failed, using channel: " + e.toString());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether vibrations are played directly on the Vibrator instead of through their
+     * notification channel (SDK >= 26).
+     */
+    public static boolean isDirectVibration(Context ctx) {
+        return PreferenceManager.getDefaultSharedPreferences(ctx)
+                .getBoolean(ctx.getString(R.string.pref_direct_vibration), false);
+    }
+
+    /**
+     * Enable or disable direct vibration mode. See isDirectVibration.
+     */
+    public static void setDirectVibration(Context ctx, boolean direct) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+                .putBoolean(ctx.getString(R.string.pref_direct_vibration), direct).apply();
+    }
+
+    /**
+     * Plays a registry entry directly with the Vibrator service, using its precomputed effect.
+     */
+    public static void vibrate(Context context, Vibration vibration) {
+        if (vibration.timestamps.length == 0) return;
+        Vibrator vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+        if (vibrator == null) {
+            Log.e(TAG, "No vibrator found!");
+        }
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && vibration.effect != null) {
+            vibrator.vibrate((VibrationEffect) vibration.effect);
+        }
+        else {
+            vibrator.vibrate(vibration.timestamps, -1);
         }
     }
 
     /**
-     * Deprecated. Plays the vibration given a long pattern. Used for SDK < 26 where notification
-     * channels aren't available yet. Uses Vibrator service.
+     * Plays the vibration given a long pattern that is not in the registry, e.g. the preview of a
+     * pattern that is being generated. Uses Vibrator service.
      * @param pattern Pattern to play. Array of longs.
      */
     public static void vibrate(Context context, long[] pattern) {
@@ -3,39 +3,33 @@ package com.tzgames.ringer.fragments.main;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.graphics.Bitmap;
-import android.graphics.Color;
-import android.graphics.ImageDecoder;
-import android.graphics.Typeface;
-import android.graphics.drawable.Drawable;
 import android.media.RingtoneManager;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
-import androidx.appcompat.content.res.AppCompatResources;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import android.util.TypedValue;
-import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.LinearLayout;
-import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.tzgames.ringer.activities.MainActivity;
 import com.tzgames.ringer.R;
 import com.tzgames.ringer.data.ContactsManager;
+import com.tzgames.ringer.data.ContactsManager.ContactChange;
 import com.tzgames.ringer.data.ContactsManager.CustomRingerPerson;
 import com.tzgames.ringer.data.VibrationsManager;
-import com.tzgames.ringer.views.RoundedImageView;
+import com.tzgames.ringer.views.ContactListAdapter;
 
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Fragment that consists of a ScrollableView that holds the contacts that have a custom ringtone
+ * Fragment that consists of a RecyclerView that holds the contacts that have a custom ringtone
  * assigned. In other words, it is the visual representation of all CustomRingerPerson 's. Each
  * list item has some logic attatched to it like update ringtone / vib or delete person.
  */
@@ -44,12 +38,30 @@ public class ContactsFragment extends Fragment {
     /** Context used throughout fragment */
     private Context context;
 
-    /** Root scrollView (which is actually the LinearLayout content of a scrollView) */
-    private LinearLayout scrollView;
+    /** RecyclerView that holds one row per custom contact */
+    private RecyclerView recyclerView;
+
+    /** Text shown instead of the list while no contacts have been added */
+    private TextView emptyText;
+
+    /** Adapter that diffs and binds the contact rows */
+    private ContactListAdapter adapter;
+
+    /** The rows last submitted to the adapter. Patched in place when single contacts change */
+    private final ArrayList<ContactListAdapter.ContactItem> items = new ArrayList<>();
 
     /** Reference to MainActivity to handle update function calls */
     private MainActivity mainActivity;
 
+    /** Patches the affected rows whenever ContactsManager publishes changes */
+    private final ContactsManager.OnContactsChangedListener changeListener =
+            new ContactsManager.OnContactsChangedListener() {
+        @Override
+        public void onContactsChanged(List<ContactChange> changes) {
+            applyChanges(changes);
+        }
+    };
+
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -57,13 +69,35 @@ public class ContactsFragment extends Fragment {
         return inflater.inflate(R.layout.fragment_contacts, container, false);
     }
 
-    /** Initial population of scroll view occurrs here */
+    /** Initial population of the contacts list occurrs here */
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         context = view.getContext();
         mainActivity = (MainActivity) context;
-        scrollView = view.findViewById(R.id.scrollViewContent);
-        populateScrollView();
+        emptyText = view.findViewById(R.id.contacts_empty_txt);
+        recyclerView = view.findViewById(R.id.contacts_recycler_view);
+        recyclerView.setLayoutManager(new LinearLayoutManager(context));
+        adapter = new ContactListAdapter(context, new ContactListAdapter.OnContactClickListener() {
+            @Override
+            public void onContactClick(long id) {
+                showContactActions(id);
+            }
+
+            @Override
+            public void onContactLongClick(long id) {
+                showDeleteContact(id);
+            }
+        });
+        recyclerView.setAdapter(adapter);
+        ContactsManager.addOnContactsChangedListener(changeListener);
+        refreshContacts();
+    }
+
+    @Override
+    public void onDestroyView() {
+        ContactsManager.removeOnContactsChangedListener(changeListener);
+        adapter = null;
+        super.onDestroyView();
     }
 
     /**
@@ -80,199 +114,144 @@ public class ContactsFragment extends Fragment {
     }
 
     /**
-     * Method that re-draws the main ScrollView items and puts them into the listview.
-     * It draws the CustomRingerPersons that have custom ringtones assigned to them.
+     * Method that submits the current CustomRingerPersons that have custom ringtones assigned
+     * to the list. The adapter diffs the new list against the old one in the background, so
+     * only the rows that changed are rebound.
      */
-    public void populateScrollView() {
-        // remove outdated list items and re-create from scratch
-        scrollView.removeAllViews();
+    public void refreshContacts() {
+        // view not created yet. It reads the current contacts in onViewCreated
+        if (adapter == null) return;
 
-        // if no contacts are created, show default screen that prompts user to add contacts
-        if (ContactsManager.isEmptyContacts(context)) {
-            TextView t = new TextView(context);
-            int pxPad = dpToPx(context,20);
-            t.setPadding(pxPad, pxPad * 2, pxPad,0);
-            t.setTextColor(Color.GRAY);
-            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(
-                    LinearLayout.LayoutParams.WRAP_CONTENT, LinearLayout.LayoutParams.WRAP_CONTENT);
-            t.setLayoutParams(params);
-            t.setGravity(Gravity.CENTER);
-            t.setTextSize(16);
-            t.setLineSpacing(dpToPx(context,3), (float) 1.0);
-            t.setText(getString(R.string.no_contacts));
-            scrollView.addView(t);
-        }
-        for (String c : ContactsManager.getAllContactNames(context)) {
-            RelativeLayout contact = makeContactView(ContactsManager.getContact(context, c));
-            contact.setOnClickListener(new ContactOnClickListener(c));
-            contact.setOnLongClickListener(new ContactOnLongClickListener(c));
-            scrollView.addView(contact);
+        String defaultTone = ContactsManager.getDefaultToneString(context);
+        items.clear();
+        for (long id : ContactsManager.getCustomContactIds(context)) {
+            items.add(new ContactListAdapter.ContactItem(
+                    ContactsManager.getContact(context, id), defaultTone));
         }
+        submitItems();
     }
 
     /**
-     * Given a CustomRinger person, return a relativeLayout that will be a listitem in the main
-     * contacts scrollView. See R.layout.list_item_contact to see what a listitem looks like.
+     * Patch only the rows of the contacts that changed. A changed default ringtone affects every
+     * row that uses it, so then the whole list is rebuilt.
+     * @param changes Batch of changes published by ContactsManager
      */
-    @SuppressWarnings("deprecation")
-    private RelativeLayout makeContactView(CustomRingerPerson person) {
-
-        RelativeLayout view = (RelativeLayout) View.inflate(context, R.layout.list_item_contact, null);
-
-        TextView name = view.findViewById(R.id.contact_name_txt);
-        name.setText(person.name);
-
-        Bitmap bitmap;
-        RoundedImageView imgView = view.findViewById(R.id.contact_pic);
+    private void applyChanges(List<ContactChange> changes) {
+        if (adapter == null) return;
+        String defaultTone = null;
+        for (ContactChange change : changes) {
+            if (change.type == ContactChange.DEFAULT_CHANGED) {
+                refreshContacts();
+                return;
+            }
 
-        // try to set image to image stored in contact. If not, set it to default no-face image
-        try {
-            if (Build.VERSION.SDK_INT < 28) {
-                 bitmap = MediaStore.Images.Media.getBitmap(context.getContentResolver(),
-                        Uri.parse(person.photoURI));
-            } else {
-                ImageDecoder.Source source = ImageDecoder.createSource(context.getContentResolver(),
-                        Uri.parse(person.photoURI));
-                bitmap = ImageDecoder.decodeBitmap(source);
+            int position = indexOf(change.id);
+            CustomRingerPerson person = ContactsManager.getContact(context, change.id);
+            if (change.type == ContactChange.REMOVED || person == null) {
+                if (position >= 0) items.remove(position);
+                continue;
             }
-            imgView.setImageBitmap(bitmap);
-        } catch (Exception e) {
-            imgView.setImageDrawable(
-                    AppCompatResources.getDrawable(context, R.drawable.ic_default_user));
-        }
 
-        // Add notification tone under bolded name
-        TextView txtTone = view.findViewById(R.id.contact_notif_txt);
-        String tone = RingtoneManager.getRingtone(context, Uri.parse(person.ringtoneURI)).getTitle(context);
-        if (tone.toLowerCase().contains("default")) {
-            tone = tone.replace("default", "");
-            tone = tone.replace("Default", "");
-            tone = tone.replace("(", "");
-            tone = tone.replace(")", "");
-            tone = tone.replace("ringtone", "");
-            tone = tone.replace("Ringtone", "");
-            tone = tone.trim();
+            if (defaultTone == null) defaultTone = ContactsManager.getDefaultToneString(context);
+            ContactListAdapter.ContactItem item = new ContactListAdapter.ContactItem(person, defaultTone);
+            if (position >= 0) items.set(position, item);
+            else items.add(item);
         }
+        submitItems();
+    }
 
-        // If person is the default ringtone, do not add him to the list by making him invisible
-        if (!person.ringtoneURI.equals(ContactsManager.getDefaultToneString(context))) {
-            view.findViewById(R.id.contact_default_txt).setVisibility(View.GONE);
+    /**
+     * @return The row of the contact with the given id, -1 if it has none
+     */
+    private int indexOf(long id) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).id == id) return i;
         }
+        return -1;
+    }
 
-        // If person has a default vibration pattern, do not write the name of the pattern
-        if (!person.vibrateURI.equals(VibrationsManager.DEFAULT_VIBRATION))
-            tone = tone + " | " + person.vibrateURI;
-
-        txtTone.setText(tone);
-
-        // If person has ringtones or vibrations turned off, draw appropriate on/off icons
-        TextView icons = view.findViewById(R.id.contact_icons);
-        Drawable left = person.ringtoneURI.equals(ContactsManager.NONE_RINGTONE_ID)
-                ? AppCompatResources.getDrawable(context, R.drawable.ic_notifications_off_black_24dp)
-                : AppCompatResources.getDrawable(context, R.drawable.ic_notifications_active_black_24dp);
-        Drawable right = !person.vibrateURI.equals(VibrationsManager.NONE_VIBRATION)
-                ? AppCompatResources.getDrawable(context, R.drawable.ic_vibration_black_24dp)
-                : null;
-        icons.setCompoundDrawablesWithIntrinsicBounds(left, null, right, null);
-        icons.setText("");
-        if (right != null) {
-            icons.setText(" | ");
-            icons.setTextSize(17);
-            icons.setTypeface(Typeface.create("sans-serif-medium", Typeface.NORMAL));
-        }
-        return view;
+    /**
+     * Hand a copy of the current rows to the adapter and show the empty screen if there are none.
+     */
+    private void submitItems() {
+        // if no contacts are created, show default screen that prompts user to add contacts
+        boolean empty = items.isEmpty();
+        emptyText.setVisibility(empty ? View.VISIBLE : View.GONE);
+        recyclerView.setVisibility(empty ? View.GONE : View.VISIBLE);
+        adapter.submitList(new ArrayList<>(items));
     }
 
     /**
-     * OnLongClickListener for a list item in main scroll view. If a contact is long pressed,
-     * present the option to delete that contact.
+     * Called when a list item is long pressed. Present the option to delete that contact.
      */
-    private class ContactOnLongClickListener implements View.OnLongClickListener {
-        final String contactName;
-        ContactOnLongClickListener(String name) {
-            contactName = name;
-        }
-        @Override
-        public boolean onLongClick(View view) {
-            String[] options = {getString(R.string.main_dialog_delete_contact) + " " + contactName};
+    private void showDeleteContact(final long contactId) {
+        CustomRingerPerson person = ContactsManager.getContact(context, contactId);
+        if (person == null) return;
+        String[] options = {getString(R.string.main_dialog_delete_contact) + " " + person.name};
 
-            AlertDialog.Builder builder = new AlertDialog.Builder(context);
-            builder.setItems(options, new DialogInterface.OnClickListener() {
-                @Override
-                public void onClick(DialogInterface dialog, int which) {
-                    if (which == 0) {
-                        ContactsManager.removeContact(context, contactName);
-                        populateScrollView();
-                    }
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setItems(options, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (which == 0) {
+                    ContactsManager.removeContact(context, contactId);
                 }
-            });
-            AlertDialog built = builder.create();
-            built.show();
-
-            return true;
-        }
+            }
+        });
+        AlertDialog built = builder.create();
+        built.show();
     }
 
     /**
-     * OnClickListener for a list item in the main scroll view. If a contact is clicked, then
-     * give the user options to pick the contact's ringtone and vibration pattern. Also play the
-     * current ringtone and vibration pattern as feedback for user.
+     * Called when a list item is clicked. Give the user options to pick the contact's ringtone
+     * and vibration pattern. Also play the current ringtone and vibration pattern as feedback.
      */
-    private class ContactOnClickListener implements View.OnClickListener {
-        final String contactName;
-        ContactOnClickListener(String name) {
-            contactName = name;
-        }
-        @Override
-        public void onClick(View view) {
-            String[] options = {getString(R.string.main_dialog_set_notif_tone),
-                    getString(R.string.main_dialog_set_vib_pattern)};
+    private void showContactActions(final long contactId) {
+        final CustomRingerPerson person = ContactsManager.getContact(context, contactId);
+        if (person == null) return;
+        String[] options = {getString(R.string.main_dialog_set_notif_tone),
+                getString(R.string.main_dialog_set_vib_pattern)};
 
-            AlertDialog.Builder builder = new AlertDialog.Builder(context);
-            builder.setTitle(getString(R.string.main_dialog_title) + " " + contactName);
-            builder.setItems(options, new DialogInterface.OnClickListener() {
-                @Override
-                public void onClick(DialogInterface dialog, int which) {
-                    if (which == 0) {
-                        mainActivity.pickRingtone(contactName);
-                    }
-                    else if (which == 1) {
-                        if (!mainActivity.getBillingManager().isPremium()) {
-                            int vibs = ContactsManager.countContactsWithVibrations(context);
-                            boolean hasVib = !ContactsManager.getContact(context, contactName).vibrateURI
-                                    .equals(VibrationsManager.DEFAULT_VIBRATION);
-                            if (vibs <= 0 || (vibs == 1 && hasVib)) {
-                                mainActivity.pickVibrationPattern(contactName);
-                            }
-                            else {
-                                mainActivity.buildInformationDialog(getString(R.string.not_premium_dialog_title),
-                                        R.string.not_premium_dialog_txt_vib, getString(R.string.about_ok),
-                                        new DialogInterface.OnClickListener() {
-                                            @Override
-                                            public void onClick(DialogInterface dialogInterface, int i) {
-                                                mainActivity.getBillingManager().buyPremium();
-                                            }
-                                        }
-                                ).show();
-                            }
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle(getString(R.string.main_dialog_title) + " " + person.name);
+        builder.setItems(options, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (which == 0) {
+                    mainActivity.pickRingtone(contactId);
+                }
+                else if (which == 1) {
+                    if (!mainActivity.getBillingManager().isPremium()) {
+                        int vibs = ContactsManager.countContactsWithVibrations(context);
+                        boolean hasVib = !person.vibrateURI.equals(VibrationsManager.DEFAULT_VIBRATION);
+                        if (vibs <= 0 || (vibs == 1 && hasVib)) {
+                            mainActivity.pickVibrationPattern(contactId);
                         }
                         else {
-                            mainActivity.pickVibrationPattern(contactName);
+                            mainActivity.buildInformationDialog(getString(R.string.not_premium_dialog_title),
+                                    R.string.not_premium_dialog_txt_vib, getString(R.string.about_ok),
+                                    new DialogInterface.OnClickListener() {
+                                        @Override
+                                        public void onClick(DialogInterface dialogInterface, int i) {
+                                            mainActivity.getBillingManager().buyPremium();
+                                        }
+                                    }
+                            ).show();
                         }
                     }
+                    else {
+                        mainActivity.pickVibrationPattern(contactId);
+                    }
                 }
-            });
-            AlertDialog built = builder.create();
-            built.show();
-
-            CustomRingerPerson person = ContactsManager.getContact(context, contactName);
-
+            }
+        });
+        AlertDialog built = builder.create();
+        built.show();
 
-            // play vibration
-            VibrationsManager.vibrateByName(context, person.vibrateURI);
+        // play vibration
+        VibrationsManager.vibrateByName(context, person.vibrateURI);
 
-            // play notification tone
-            RingtoneManager.getRingtone(context, Uri.parse(person.ringtoneURI)).play();
-        }
+        // play notification tone
+        RingtoneManager.getRingtone(context, Uri.parse(person.ringtoneURI)).play();
     }
 }
@@ -2,9 +2,6 @@ package com.tzgames.ringer.fragments.main;
 
 
 import android.content.Context;
-import android.media.Ringtone;
-import android.media.RingtoneManager;
-import android.net.Uri;
 import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
@@ -15,6 +12,7 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import com.tzgames.ringer.data.ContactsManager;
+import com.tzgames.ringer.data.RingtoneTitleCache;
 import com.tzgames.ringer.activities.MainActivity;
 import com.tzgames.ringer.R;
 
@@ -30,6 +28,16 @@ public class DefaultFragment extends Fragment {
     /** Default Vibration TextView */
     private TextView defVibTxt;
 
+    /** Fills in the default tone title once RingtoneTitleCache resolved it */
+    private final RingtoneTitleCache.OnTitleResolvedListener titleListener =
+            new RingtoneTitleCache.OnTitleResolvedListener() {
+        @Override
+        public void onTitleResolved(String ringtoneURI) {
+            Context ctx = getContext();
+            if (ctx != null) refreshDefaults(ctx);
+        }
+    };
+
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -43,7 +51,7 @@ public class DefaultFragment extends Fragment {
             public void onClick(View view) {
                 MainActivity activity = (MainActivity) getActivity();
                 if (activity != null)
-                    activity.pickRingtone(ContactsManager.getDefaultContactName());
+                    activity.pickRingtone(ContactsManager.getDefaultContactId());
             }
         });
 
@@ -53,7 +61,7 @@ public class DefaultFragment extends Fragment {
             public void onClick(View view) {
                 MainActivity activity = (MainActivity) getActivity();
                 if (activity != null)
-                    activity.pickVibrationPattern(ContactsManager.getDefaultContactName());
+                    activity.pickVibrationPattern(ContactsManager.getDefaultContactId());
             }
         });
 
@@ -61,19 +69,27 @@ public class DefaultFragment extends Fragment {
         // in NotifyWho
         defNotifTxt = view.findViewById(R.id.set_default_tone_txt);
         defVibTxt = view.findViewById(R.id.set_default_vib_txt);
+        RingtoneTitleCache.addListener(titleListener);
         refreshDefaults(view.getContext());
 
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        RingtoneTitleCache.removeListener(titleListener);
+        super.onDestroyView();
+    }
+
     /**
      * Method that updates the current default textviews that show which ringtones / vibs are the
      * default. Should be called implicitely by ViewPager when this view is dirty. This view should
      * be dirty when the default ringtones/ vibs changes.
      */
     public void refreshDefaults(Context ctx) {
-        Ringtone tone = RingtoneManager.getRingtone(ctx, Uri.parse(ContactsManager.getDefaultToneString(ctx)));
-        defNotifTxt.setText(tone.getTitle(ctx));
+        if (defNotifTxt == null) return;
+        String title = RingtoneTitleCache.getTitle(ctx, ContactsManager.getDefaultToneString(ctx));
+        if (title != null) defNotifTxt.setText(title);
         defVibTxt.setText(ContactsManager.getDefaultVibString(ctx));
     }
 }
@@ -16,6 +16,8 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import com.tzgames.ringer.R;
+import com.tzgames.ringer.data.PatternBuffer;
+import com.tzgames.ringer.data.VibrationPatternParser;
 import com.tzgames.ringer.data.VibrationsManager;
 import com.tzgames.ringer.activities.VibrationPickerActivity;
 import com.tzgames.ringer.views.GeneratorView;
@@ -26,6 +28,10 @@ import static com.tzgames.ringer.fragments.main.ContactsFragment.dpToPx;
  * Fragment that overlays VibrationPickerActivity and provides a view for the user to generate
  * vibration patterns based on how long he clicks that view. Also allows editing vibration
  * patterns by inputting raw strings. And in charge of naming / previewing the pattern.
+ *
+ * Recorded timings are appended to a PatternBuffer, which is the source of truth for the pattern.
+ * The text field only gets the new timing appended. Once the user edits the text by hand, the
+ * buffer is re-read from the text the next time it is needed.
  */
 public class VibrationGenFragment extends Fragment {
 
@@ -38,6 +44,22 @@ public class VibrationGenFragment extends Fragment {
     /** Reference to parent activity */
     private VibrationPickerActivity pickerAct;
 
+    /** The recorded pattern. Matches the text field unless bufferStale is set */
+    private final PatternBuffer pattern = new PatternBuffer();
+
+    /** Parses edited text and validates recorded timings */
+    private final VibrationPatternParser parser = new VibrationPatternParser();
+
+    /** Set when the user edited the text field, so pattern must be re-read from the text */
+    private boolean bufferStale = false;
+
+    /** Whether pattern holds a valid pattern. False if the edited text could not be parsed or
+     * the recorded pattern exceeds the bounds */
+    private boolean patternValid = true;
+
+    /** Set while this fragment appends to the text field, to tell its own edits from the user's */
+    private boolean appending = false;
+
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -79,10 +101,11 @@ public class VibrationGenFragment extends Fragment {
 
             @Override
             public void afterTextChanged(Editable editable) {
-                pickerAct.enableSave(!editable.toString().equals(""));
-                if (editable.toString().length() > 0 && playBtn.getVisibility() != View.VISIBLE)
+                if (!appending) bufferStale = true;
+                pickerAct.enableSave(editable.length() > 0);
+                if (editable.length() > 0 && playBtn.getVisibility() != View.VISIBLE)
                     playBtn.show();
-                else if (editable.toString().length() == 0 && playBtn.getVisibility() == View.VISIBLE)
+                else if (editable.length() == 0 && playBtn.getVisibility() == View.VISIBLE)
                     playBtn.hide();
             }
         });
@@ -94,14 +117,8 @@ public class VibrationGenFragment extends Fragment {
             @Override
             public void onTouchEnded(long touchEndTime) {
                 // Time the user pressed on the screen
-                String dt = String.valueOf(touchEndTime - getRecentStartTime());
-                Editable txt = editText.getText();
-                if (txt != null) {
-                    String newTxt = txt.toString();
-                    newTxt += (newTxt.equals("") ? dt : ", " + dt);
-                    editText.setText(newTxt);
-                    VibrationsManager.cancelVibrate(pickerAct);
-                }
+                appendTiming(touchEndTime - getRecentStartTime());
+                VibrationsManager.cancelVibrate(pickerAct);
             }
             @Override
             public void onTouchStarted(long touchStartTime) {
@@ -114,13 +131,8 @@ public class VibrationGenFragment extends Fragment {
                     pressToStart.setVisibility(View.GONE);
                 }
 
-                Editable txt = editText.getText();
-                if (txt != null) {
-                    String newTxt = txt.toString();
-                    newTxt += (newTxt.equals("")? dt : ", " + dt);
-                    editText.setText(newTxt);
-                    VibrationsManager.vibrateForever(pickerAct);
-                }
+                appendTiming(dt);
+                VibrationsManager.vibrateForever(pickerAct);
             }
         });
 
@@ -151,24 +163,65 @@ public class VibrationGenFragment extends Fragment {
     }
 
     /**
-     * Parses the generated pattern and turns it into array of longs, ready to be played.
+     * Append a recorded timing to the pattern and to the end of the text field.
+     * @param dt The timing in milliseconds
+     */
+    private void appendTiming(long dt) {
+        syncPattern();
+        if (patternValid && !parser.append(pattern, dt, editText.length())) patternValid = false;
+
+        appending = true;
+        editText.append(editText.length() == 0 ? String.valueOf(dt) : ", " + dt);
+        appending = false;
+    }
+
+    /**
+     * Re-read the pattern from the text field if the user edited it by hand. A cleared text field
+     * is a valid, empty pattern, so that recording can start over.
+     */
+    private void syncPattern() {
+        if (!bufferStale) return;
+        bufferStale = false;
+        Editable text = editText.getText();
+        if (text == null || text.length() == 0) {
+            pattern.clear();
+            patternValid = true;
+            return;
+        }
+        patternValid = parser.parse(text, pattern);
+    }
+
+    /**
+     * Returns the generated pattern as array of longs, ready to be played. If the pattern is
+     * invalid, the text field shows why and the cursor is moved to the offending value.
      * @return The long[] that the user generated. If the user generated sequence is invalid, NULL.
      */
     public long[] getPattern() {
-        Editable text = editText.getText();
-        if (text == null) return null;
-        String[] items = text.toString()
-                .replaceAll("\\s", "")
-                .split(",");
-
-        // try to parse each item as a long
-        long[] times = new long[items.length];
-        try {        // get individual times by splitting input string
-            for (int i = 0; i < items.length; i++) times[i] = Long.decode(items[i]);
-        } catch (Exception e) {
-            return null;
+        syncPattern();
+        // an empty or 0 ms pattern is only an error once it is used
+        if (patternValid && pattern.total() > 0) return VibrationPatternParser.toPattern(pattern);
+        showPatternError();
+        return null;
+    }
+
+    /**
+     * Show the reason the pattern could not be parsed on the text field.
+     */
+    private void showPatternError() {
+        int offset = Math.max(0, Math.min(parser.getErrorOffset(), editText.length()));
+        switch (parser.getError()) {
+            case VibrationPatternParser.ERROR_TOO_MANY_SEGMENTS:
+                editText.setError(getString(R.string.vib_gen_pattern_error_segments,
+                        VibrationPatternParser.MAX_SEGMENTS));
+                break;
+            case VibrationPatternParser.ERROR_TOO_LONG:
+                editText.setError(getString(R.string.vib_gen_pattern_error_duration,
+                        VibrationPatternParser.MAX_DURATION_MS / 1000));
+                break;
+            default:
+                editText.setError(getString(R.string.vib_gen_pattern_error_at, offset + 1));
         }
-        return times;
+        editText.setSelection(offset);
     }
 
     /**
@@ -0,0 +1,119 @@
+package com.tzgames.ringer.services;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.net.Uri;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.tzgames.ringer.data.AlertChannels;
+import com.tzgames.ringer.data.ContactsManager;
+import com.tzgames.ringer.data.VibrationsManager;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * Everything needed to play the tone and vibration of a contact, a rule or the default, derived
+ * once from their ringtone URI and vibration name, including the id of their fused channel.
+ * Playing an alert then needs no parsing, hashing or lookups.
+ *
+ * A ringtone that no longer exists (e.g. a deleted file) is replaced by the system's default
+ * notification sound, and a vibration that no longer exists by the default vibration.
+ * Immutable, so profiles can be shared and kept in caches.
+ */
+final class AlertProfile {
+    /** Debug Tag */
+    private static final String TAG = "AlertProfile";
+
+    /** Attributes every tone is played with */
+    static final AudioAttributes AUDIO_ATTRIBUTES = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_NOTIFICATION)
+            .build();
+
+    /** The tone to play, or ContactsManager.NONE_RINGTONE_ID for no tone. Used as cache key */
+    final String ringtoneURI;
+
+    /** The parsed tone. Null for no tone */
+    final Uri ringtone;
+
+    /** The vibration to play. Its duration is 0 for no vibration */
+    final VibrationsManager.Vibration vibration;
+
+    /** Id of the fused channel that plays tone and vibration together. Null without vibration */
+    final String channelId;
+
+    private AlertProfile(String _ringtoneURI, Uri _ringtone,
+                         VibrationsManager.Vibration _vibration) {
+        ringtoneURI = _ringtoneURI;
+        ringtone = _ringtone;
+        vibration = _vibration;
+        channelId = _vibration == null ? null
+                : AlertChannels.channelIdFor(_ringtoneURI, _vibration);
+    }
+
+    /**
+     * Returns true if this profile plays no tone.
+     */
+    boolean isSilent() {
+        return ringtone == null;
+    }
+
+    /**
+     * Returns true if both profiles play the same tone and vibration.
+     */
+    boolean sameOutput(AlertProfile other) {
+        return this == other || (ringtoneURI.equals(other.ringtoneURI)
+                && vibration.name.equals(other.vibration.name));
+    }
+
+    /**
+     * Build the profile of a tone and vibration. May read the file system to check that the tone
+     * still exists, so call it when a contact changes rather than for every alert.
+     * @param ringtoneURI Tone to play, or ContactsManager.NONE_RINGTONE_ID for no tone
+     * @param vibrationName Name of the vibration to play
+     */
+    static AlertProfile compile(Context ctx, String ringtoneURI, String vibrationName) {
+        Uri ringtone = null;
+        if (ringtoneURI == null || ringtoneURI.isEmpty()
+                || ringtoneURI.equals(ContactsManager.NONE_RINGTONE_ID)) {
+            ringtoneURI = ContactsManager.NONE_RINGTONE_ID;
+        } else {
+            ringtone = Uri.parse(ringtoneURI);
+            if (!exists(ctx, ringtone)) {
+                Log.i(TAG, "Ringtone " + ringtoneURI + " is gone, using default");
+                ringtone = Settings.System.DEFAULT_NOTIFICATION_URI;
+                ringtoneURI = ringtone.toString();
+            }
+        }
+
+        VibrationsManager.Vibration vibration = vibrationName == null ? null
+                : VibrationsManager.getVibration(ctx, vibrationName);
+        if (vibration == null) {
+            Log.i(TAG, "Vibration " + vibrationName + " is gone, using default");
+            vibration = VibrationsManager.getVibration(ctx, VibrationsManager.DEFAULT_VIBRATION);
+        }
+        return new AlertProfile(ringtoneURI, ringtone, vibration);
+    }
+
+    /**
+     * Returns false if a tone certainly does not exist anymore. Tones that can not be checked
+     * (e.g. for lack of permission) are taken to exist.
+     */
+    private static boolean exists(Context ctx, Uri uri) {
+        if ("file".equals(uri.getScheme()))
+            return uri.getPath() != null && new File(uri.getPath()).exists();
+        if (!"content".equals(uri.getScheme())) return true;
+        try {
+            AssetFileDescriptor fd = ctx.getContentResolver().openAssetFileDescriptor(uri, "r");
+            if (fd == null) return false;
+            fd.close();
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+}
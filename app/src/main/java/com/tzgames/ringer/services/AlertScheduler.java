@@ -0,0 +1,274 @@
+package com.tzgames.ringer.services;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.tzgames.ringer.data.AlertChannels;
+import com.tzgames.ringer.data.VibrationsManager;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays alerts (a notification tone plus a vibration) one after another, so alerts that arrive at
+ * almost the same time do not cut each other off. Each alert occupies the output for as long as
+ * its tone or vibration lasts, whichever is longer. Tones count for at most MAX_TONE_MS, so a long
+ * song picked as notification tone does not hold back the alerts behind it.
+ *
+ * Policy while an alert is playing:
+ *  - an alert with the same tone and vibration as a queued one is merged into it
+ *  - the queue holds at most MAX_QUEUE alerts; when full, the lowest priority (then oldest) alert
+ *    is dropped, which may be the new one
+ *  - vibration notifications are posted at most once per MIN_POST_INTERVAL_MS, below the
+ *    platform's per-app notification rate limit, and each gets its own notification id
+ *
+ * In fused mode (see AlertChannels) the tone and vibration are played by one post to a channel
+ * that has both. Alerts are given as precompiled AlertProfiles, so playing one parses nothing.
+ *
+ * All methods must be called on the main thread.
+ */
+public class AlertScheduler {
+    /** Debug Tag */
+    private static final String TAG = "AlertScheduler";
+
+    /** Priority of alerts for messages from unknown senders */
+    public static final int PRIORITY_DEFAULT = 0;
+
+    /** Priority of alerts for messages from custom contacts */
+    public static final int PRIORITY_CONTACT = 1;
+
+    /** Max number of alerts waiting to be played */
+    private static final int MAX_QUEUE = 4;
+
+    /** Min time between two vibration notification posts. Android allows about 5 per second */
+    private static final int MIN_POST_INTERVAL_MS = 250;
+
+    /** Pause between two alerts so they can be told apart */
+    private static final int GAP_MS = 150;
+
+    /** Assumed tone length until the real length is known */
+    private static final int DEFAULT_TONE_MS = 1500;
+
+    /** Longest tone length the next alert waits for. Longer tones are played over */
+    private static final int MAX_TONE_MS = 4000;
+
+    /** Notification ids handed out to vibration posts, cycling from FIRST_NOTIFICATION_ID */
+    private static final int FIRST_NOTIFICATION_ID = 100;
+
+    /** Number of distinct notification ids. Posts time out long before an id is reused */
+    private static final int NOTIFICATION_IDS = 8;
+
+    /**
+     * A tone and vibration to play.
+     */
+    private static class Alert {
+        final AlertProfile profile;
+        final int priority;
+
+        Alert(AlertProfile _profile, int _priority) {
+            profile = _profile;
+            priority = _priority;
+        }
+    }
+
+    private final Context context;
+
+    /** Alerts waiting to be played, in arrival order */
+    private final ArrayList<Alert> queue = new ArrayList<>(MAX_QUEUE);
+
+    /** Handler used to start the next alert once the current one is over */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Tone lengths in milliseconds by ringtone URI. Written by the resolver thread */
+    private final LruCache<String, Long> toneLengths = new LruCache<>(32);
+
+    /** Reads tone lengths in the background. The thread goes away while idle */
+    private final ExecutorService resolver;
+
+    /** Uptime until which the current alert occupies the output */
+    private long busyUntil = 0;
+
+    /** Uptime of the last vibration notification post */
+    private long lastPostTime = 0;
+
+    /** Next notification id, relative to FIRST_NOTIFICATION_ID */
+    private int nextNotificationId = 0;
+
+    /** Number of alerts dropped because the queue was full */
+    private int droppedCount = 0;
+
+    /** Number of alerts merged into an identical queued alert */
+    private int mergedCount = 0;
+
+    /** Plays the next queued alert */
+    private final Runnable playNext = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public AlertScheduler(Context ctx) {
+        context = ctx.getApplicationContext();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1,
+                5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        resolver = pool;
+    }
+
+    /**
+     * Queue an alert. It plays right away if nothing else is playing.
+     * @param profile Tone and vibration to play
+     * @param priority PRIORITY_CONTACT or PRIORITY_DEFAULT
+     */
+    void enqueue(AlertProfile profile, int priority) {
+        Alert alert = new Alert(profile, priority);
+        for (Alert queued : queue) {
+            if (queued.profile.sameOutput(profile)) {
+                mergedCount++;
+                Log.d(TAG, "Merged alert. " + this);
+                return;
+            }
+        }
+
+        if (queue.size() >= MAX_QUEUE) {
+            // drop the oldest alert with the lowest priority, or the new one if it is lower
+            int victim = -1;
+            for (int i = 0; i < queue.size(); i++) {
+                if (victim < 0 || queue.get(i).priority < queue.get(victim).priority) victim = i;
+            }
+            droppedCount++;
+            if (queue.get(victim).priority > alert.priority) {
+                Log.d(TAG, "Dropped new alert. " + this);
+                return;
+            }
+            queue.remove(victim);
+            Log.d(TAG, "Dropped queued alert. " + this);
+        }
+        queue.add(alert);
+        drain();
+    }
+
+    /**
+     * Forget all queued alerts. Called when the listener is destroyed.
+     */
+    public void release() {
+        queue.clear();
+        handler.removeCallbacks(playNext);
+        resolver.shutdownNow();
+    }
+
+    /** Queue depth and the number of dropped and merged alerts, written to the debug log */
+    @Override
+    public String toString() {
+        return "AlertScheduler{depth=" + queue.size() + ", dropped=" + droppedCount
+                + ", merged=" + mergedCount + "}";
+    }
+
+    /**
+     * Play the next alert if the output is free, otherwise try again once it is.
+     */
+    private void drain() {
+        handler.removeCallbacks(playNext);
+        if (queue.isEmpty()) return;
+
+        long now = SystemClock.uptimeMillis();
+        long readyAt = Math.max(busyUntil, lastPostTime + MIN_POST_INTERVAL_MS);
+        if (now < readyAt) {
+            handler.postAtTime(playNext, readyAt);
+            return;
+        }
+
+        AlertProfile profile = queue.remove(0).profile;
+        long length = AlertChannels.isFusedChannels(context)
+                ? playFused(profile, now)
+                : Math.max(playTone(profile), playVibration(profile, now));
+        busyUntil = now + length + GAP_MS;
+        if (!queue.isEmpty()) handler.postAtTime(playNext, busyUntil);
+    }
+
+    /**
+     * Play the tone and vibration of an alert with a single post to their fused channel. Plays
+     * them separately if that is not possible.
+     * @return The length of the alert in milliseconds
+     */
+    private long playFused(AlertProfile profile, long now) {
+        if (profile.vibration == null || !AlertChannels.post(context, profile.channelId,
+                profile.ringtoneURI, profile.vibration, FIRST_NOTIFICATION_ID + nextNotificationId)) {
+            return Math.max(playTone(profile), playVibration(profile, now));
+        }
+        nextNotificationId = (nextNotificationId + 1) % NOTIFICATION_IDS;
+        lastPostTime = now;
+
+        long toneLength = profile.isSilent() ? 0 : toneLength(profile);
+        return Math.max(toneLength, profile.vibration.duration);
+    }
+
+    /**
+     * Play the notification tone of a profile.
+     * @return The length of the tone in milliseconds. 0 if nothing is played
+     */
+    private long playTone(AlertProfile profile) {
+        if (profile.isSilent()) return 0;
+        Ringtone player = RingtoneManager.getRingtone(context, profile.ringtone);
+        if (player == null) return 0;
+        player.setAudioAttributes(AlertProfile.AUDIO_ATTRIBUTES);
+        player.play();
+        return toneLength(profile);
+    }
+
+    /**
+     * Play the vibration of a profile with its own notification id.
+     * @return The length of the vibration in milliseconds. 0 if nothing is played
+     */
+    private long playVibration(AlertProfile profile, long now) {
+        VibrationsManager.Vibration vibration = profile.vibration;
+        if (vibration == null || vibration.duration == 0) return 0;
+        VibrationsManager.play(context, vibration, FIRST_NOTIFICATION_ID + nextNotificationId);
+        nextNotificationId = (nextNotificationId + 1) % NOTIFICATION_IDS;
+        lastPostTime = now;
+        return vibration.duration;
+    }
+
+    /**
+     * Returns the length of a profile's tone if it is known, at most MAX_TONE_MS. Otherwise
+     * starts reading it in the background and returns DEFAULT_TONE_MS.
+     */
+    private long toneLength(AlertProfile profile) {
+        final String ringtoneURI = profile.ringtoneURI;
+        final Uri ringtone = profile.ringtone;
+        Long length = toneLengths.get(ringtoneURI);
+        if (length != null) return length;
+
+        toneLengths.put(ringtoneURI, (long) DEFAULT_TONE_MS);
+        resolver.execute(new Runnable() {
+            @Override
+            public void run() {
+                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+                try {
+                    retriever.setDataSource(context, ringtone);
+                    String duration = retriever.extractMetadata(
+                            MediaMetadataRetriever.METADATA_KEY_DURATION);
+                    if (duration != null) toneLengths.put(ringtoneURI,
+                            Math.min(MAX_TONE_MS, Long.parseLong(duration)));
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to read length of " + ringtoneURI + ": " + e.toString());
+                } finally {
+                    retriever.release();
+                }
+            }
+        });
+        return DEFAULT_TONE_MS;
+    }
+}
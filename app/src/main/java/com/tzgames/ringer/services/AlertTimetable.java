@@ -0,0 +1,132 @@
+package com.tzgames.ringer.services;
+
+import com.tzgames.ringer.data.ContactsManager.AlertWindow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * The schedule of a contact compiled into a sorted table of intervals over the week. Each
+ * boundary (in minutes since Sunday 00:00) starts an interval with a fixed AlertProfile, or with
+ * none if no window of the schedule covers it, so the active profile is found by binary search.
+ *
+ * The end of the interval found last is cached, so as long as no boundary has passed a lookup is
+ * a single comparison. The cache also ends at the next full hour, so a daylight saving or time
+ * zone change is picked up within the hour.
+ * Not thread safe, must be called on the main thread like SenderResolver.
+ */
+final class AlertTimetable {
+    /** Minutes per day */
+    private static final int DAY = 24 * 60;
+
+    /** Minutes per week */
+    private static final int WEEK = 7 * DAY;
+
+    /** Start minute of each interval, ascending. The first one is always 0 */
+    private final int[] boundaries;
+
+    /** Profile of each interval, parallel to boundaries. Null where no window is active */
+    private final AlertProfile[] profiles;
+
+    /** Profile returned for times in [validFrom, validUntil). Null if no window is active */
+    private AlertProfile current = null;
+
+    /** Start of the time range in which current is valid, in epoch millis */
+    private long validFrom = 0;
+
+    /** End of the time range in which current is valid, in epoch millis */
+    private long validUntil = 0;
+
+    private AlertTimetable(int[] _boundaries, AlertProfile[] _profiles) {
+        boundaries = _boundaries;
+        profiles = _profiles;
+    }
+
+    /**
+     * Compile a schedule.
+     * @param windows The schedule of the contact
+     * @param windowProfiles Profile of each window, parallel to windows
+     * @return The timetable, or null if no window ever applies
+     */
+    static AlertTimetable compile(List<AlertWindow> windows, AlertProfile[] windowProfiles) {
+        // expand every window into [start, end) intervals within the week
+        ArrayList<int[]> intervals = new ArrayList<>();
+        for (int w = 0; w < windows.size(); w++) {
+            AlertWindow window = windows.get(w);
+            int start = Math.max(0, Math.min(DAY - 1, window.startMinute));
+            int end = Math.max(0, Math.min(DAY, window.endMinute));
+            int length = end > start ? end - start : end + DAY - start;
+            for (int day = 0; day < 7; day++) {
+                if ((window.days & (1 << day)) == 0) continue;
+                int from = day * DAY + start;
+                int to = from + length;
+                if (to <= WEEK) {
+                    intervals.add(new int[]{from, to, w});
+                } else {
+                    intervals.add(new int[]{from, WEEK, w});
+                    intervals.add(new int[]{0, to - WEEK, w});
+                }
+            }
+        }
+        if (intervals.isEmpty()) return null;
+
+        // every start and end is a potential boundary
+        int[] points = new int[intervals.size() * 2 + 1];
+        int n = 0;
+        points[n++] = 0;
+        for (int[] interval : intervals) {
+            points[n++] = interval[0];
+            if (interval[1] < WEEK) points[n++] = interval[1];
+        }
+        Arrays.sort(points, 0, n);
+
+        // resolve each segment and merge neighbours with the same output
+        int[] boundaries = new int[n];
+        AlertProfile[] profiles = new AlertProfile[n];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && points[i] == points[i - 1]) continue;
+            int winner = -1;
+            for (int[] interval : intervals) {
+                if (interval[0] <= points[i] && points[i] < interval[1] && interval[2] > winner)
+                    winner = interval[2];
+            }
+            AlertProfile profile = winner < 0 ? null : windowProfiles[winner];
+            if (size > 0 && (profiles[size - 1] == null ? profile == null
+                    : profile != null && profiles[size - 1].sameOutput(profile))) continue;
+            boundaries[size] = points[i];
+            profiles[size] = profile;
+            size++;
+        }
+        if (size == 1 && profiles[0] == null) return null;
+        return new AlertTimetable(Arrays.copyOf(boundaries, size), Arrays.copyOf(profiles, size));
+    }
+
+    /**
+     * Returns the profile of the window that is active at a time.
+     * @param time Epoch millis, usually now
+     * @return The profile, or null if no window is active
+     */
+    AlertProfile at(long time) {
+        if (time >= validFrom && time < validUntil) return current;
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int minuteOfHour = calendar.get(Calendar.MINUTE);
+        int minute = (calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * DAY
+                + calendar.get(Calendar.HOUR_OF_DAY) * 60 + minuteOfHour;
+        long minuteStart = time - calendar.get(Calendar.SECOND) * 1000L
+                - calendar.get(Calendar.MILLISECOND);
+
+        int i = Arrays.binarySearch(boundaries, minute);
+        if (i < 0) i = -i - 2;
+        int next = i + 1 < boundaries.length ? boundaries[i + 1] : WEEK;
+
+        current = profiles[i];
+        validFrom = minuteStart;
+        validUntil = minuteStart + Math.min(next - minute, 60 - minuteOfHour) * 60000L;
+        return current;
+    }
+}
@@ -0,0 +1,132 @@
+package com.tzgames.ringer.services;
+
+import android.app.Notification;
+import android.app.Person;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.service.notification.StatusBarNotification;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the individual messages of MessagingStyle notifications. WhatsApp posts one
+ * notification per chat and updates it with every new message, so its EXTRA_TITLE is often a
+ * group name or "N messages" while the real senders are only in EXTRA_MESSAGES.
+ *
+ * For every conversation (notification key) the timestamp of the newest processed message is
+ * kept as a watermark. Each update only yields the messages newer than the watermark, walking
+ * the bundled history from its newest end, so the history is not processed again on every update.
+ * The first update seen for a conversation only yields its newest message.
+ */
+class ConversationTracker {
+    /** Max number of conversations whose watermark is kept */
+    private static final int MAX_CONVERSATIONS = 64;
+
+    /** Bundle keys of a MessagingStyle message, as written by Notification.MessagingStyle */
+    private static final String KEY_TEXT = "text";
+    private static final String KEY_TIMESTAMP = "time";
+    private static final String KEY_SENDER = "sender";
+    private static final String KEY_SENDER_PERSON = "sender_person";
+
+    /**
+     * A single message of a conversation.
+     */
+    static class Message {
+        /** Name of the sender */
+        final String sender;
+
+        /** Title of the group chat. Null if not a group chat */
+        final String conversation;
+
+        /** Text of the message. May be null */
+        final CharSequence text;
+
+        /** Time the message was sent */
+        final long timestamp;
+
+        /** tel: or contact URI of the sender. Null if not known */
+        final String[] people;
+
+        Message(String _sender, String _conversation, CharSequence _text, long _timestamp,
+                String[] _people) {
+            sender = _sender;
+            conversation = _conversation;
+            text = _text;
+            timestamp = _timestamp;
+            people = _people;
+        }
+    }
+
+    /** Timestamp of the newest processed message by notification key, least recently used first */
+    private final LinkedHashMap<String, Long> watermarks =
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_CONVERSATIONS;
+                }
+            };
+
+    /**
+     * Returns the messages of a notification that were not returned before, oldest first.
+     * @return The new messages. Null if the notification is not a MessagingStyle notification,
+     *         in which case the caller should fall back to EXTRA_TITLE / EXTRA_TEXT
+     */
+    List<Message> newMessages(StatusBarNotification sbn) {
+        Bundle extras = sbn.getNotification().extras;
+        Parcelable[] messages = extras.getParcelableArray(Notification.EXTRA_MESSAGES);
+        if (messages == null || messages.length == 0) return null;
+
+        CharSequence title = extras.getCharSequence(Notification.EXTRA_CONVERSATION_TITLE);
+        String conversation = title == null ? null : title.toString();
+
+        Long watermark = watermarks.get(sbn.getKey());
+        ArrayList<Message> result = new ArrayList<>();
+        long newest = watermark == null ? Long.MIN_VALUE : watermark;
+
+        // walk from the newest message back to the watermark
+        for (int i = messages.length - 1; i >= 0; i--) {
+            if (!(messages[i] instanceof Bundle)) continue;
+            Bundle message = (Bundle) messages[i];
+            long timestamp = message.getLong(KEY_TIMESTAMP);
+            if (watermark != null && timestamp <= watermark) break;
+
+            newest = Math.max(newest, timestamp);
+            String sender = senderOf(message);
+            // messages without sender were written by the user
+            if (sender != null)
+                result.add(new Message(sender, conversation, message.getCharSequence(KEY_TEXT),
+                        timestamp, senderUriOf(message)));
+            if (watermark == null) break;
+        }
+
+        if (newest != Long.MIN_VALUE) watermarks.put(sbn.getKey(), newest);
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Returns the sender name of a message bundle, or null if the user sent it.
+     */
+    private static String senderOf(Bundle message) {
+        CharSequence sender = message.getCharSequence(KEY_SENDER);
+        if (sender == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            Person person = message.getParcelable(KEY_SENDER_PERSON);
+            if (person != null) sender = person.getName();
+        }
+        return sender == null ? null : sender.toString();
+    }
+
+    /**
+     * Returns the URI of the sender of a message bundle as single element array, or null.
+     */
+    private static String[] senderUriOf(Bundle message) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) return null;
+        Person person = message.getParcelable(KEY_SENDER_PERSON);
+        return person == null || person.getUri() == null ? null : new String[]{person.getUri()};
+    }
+}
@@ -1,25 +1,39 @@
 package com.tzgames.ringer.services;
 
+import android.app.Person;
 import android.content.Intent;
-import android.media.AudioAttributes;
-import android.media.Ringtone;
-import android.media.RingtoneManager;
-import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 import android.util.Log;
 
+import com.tzgames.ringer.data.AlertRules;
+import com.tzgames.ringer.data.AlertRules.AlertRule;
 import com.tzgames.ringer.data.ContactsManager;
 import com.tzgames.ringer.data.ContactsManager.CustomRingerPerson;
-import com.tzgames.ringer.data.VibrationsManager;
+import com.tzgames.ringer.data.ContactsSync;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.app.Notification.EXTRA_CONVERSATION_TITLE;
+import static android.app.Notification.EXTRA_PEOPLE;
+import static android.app.Notification.EXTRA_PEOPLE_LIST;
+import static android.app.Notification.EXTRA_TEXT;
 import static android.app.Notification.EXTRA_TITLE;
 import static com.tzgames.ringer.activities.MainActivity.WHATSAPP_PACKAGE;
 
 /**
  * Sticky bckground service that scans user notification and checks if they are from Whatsapp.
  * NotificationListener listens if notification was received from a custom contact, and if so
- * plays appropriate sounds / vibrations.
+ * plays appropriate sounds / vibrations. Senders are recognized by the phone numbers or contact
+ * URIs the notification carries, and by name if it carries none.
+ *
+ * What plays is decided in this order: an active window of the sender's schedule (e.g. silent
+ * at night), then alert rules (keywords, sender and group chat patterns), then the tone of the
+ * custom contact or the default tone. A schedule window is the most specific choice the user
+ * made for a sender and time, so a rule never overrides it.
  */
 public class Intercepter extends NotificationListenerService {
     /** Log tag */
@@ -28,6 +42,38 @@ public class Intercepter extends NotificationListenerService {
     /** Time since last default notification was played. Used to prevent notification spam */
     private long lastUnknownNotificationTime = 0;
 
+    /** Plays tones and vibrations one after another */
+    private AlertScheduler alertScheduler;
+
+    /** Finds the new messages of bundled WhatsApp notifications */
+    private final ConversationTracker conversations = new ConversationTracker();
+
+    /** Caches the tone and vibration of each sender */
+    private SenderResolver senders;
+
+    /** Custom contacts that got a message timestamp during the current notification. Saved in
+     * one write once all of its messages are handled */
+    private final ArrayList<CustomRingerPerson> updatedPersons = new ArrayList<>();
+
+    /**
+     * Creates the alert scheduler and the sender cache.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        alertScheduler = new AlertScheduler(this);
+        senders = new SenderResolver(this);
+    }
+
+    /**
+     * Drops alerts that were not played yet.
+     */
+    @Override
+    public void onDestroy() {
+        alertScheduler.release();
+        super.onDestroy();
+    }
+
     /**
      * Called when service starts. By returning START_STICKY, ensure that this service always runs,
      * and restarts itself if stopped.
@@ -39,9 +85,22 @@ public class Intercepter extends NotificationListenerService {
         return START_STICKY;
     }
 
+    /**
+     * Called when the system bound this listener. Starts keeping custom contacts in sync with
+     * the address book, so renamed contacts keep matching even if the app is never opened.
+     */
+    @Override
+    public void onListenerConnected() {
+        super.onListenerConnected();
+        ContactsSync.start(this);
+    }
+
     /**
      * Method that handles incoming notifications. If received from Whatsapp, check the sender's
-     * name against all custom contacts, and play appropriate notification / vibration patterns
+     * name against all custom contacts, and play appropriate notification / vibration patterns.
+     * For MessagingStyle notifications, every message that is new since the last update is
+     * handled with its own sender; otherwise the notification title is taken as the sender.
+     * The new message timestamps of all senders are saved together afterwards.
      * @param sbn The StatusBarNotification that was received
      */
     @Override
@@ -49,74 +108,124 @@ public class Intercepter extends NotificationListenerService {
 
         // Notification arrive from WhatsApp
         if (sbn.getPackageName().equals(WHATSAPP_PACKAGE)) {
-            Long msgLongDate = sbn.getNotification().when;
-            String msgFrom = sbn.getNotification().extras.getString(EXTRA_TITLE);
-
-            // No message from, exiting
-            if (msgFrom == null) return;
-
-            // Message is from whatsapp itself, not from user. exiting
-            else if (msgFrom.toLowerCase().contains("whatsapp")) return;
-
-            try {
-                // Time since last played notification sound. We don't want to spam!
-                long dt = System.currentTimeMillis() - lastUnknownNotificationTime;
-
-                // Try to get the CustomRingerPerson
-                CustomRingerPerson person = ContactsManager.getContact(this, msgFrom);
+            List<ConversationTracker.Message> messages = conversations.newMessages(sbn);
+            if (messages != null) {
+                for (ConversationTracker.Message m : messages)
+                    onMessage(m.sender, m.people, m.conversation, m.text, m.timestamp);
+            } else {
+                Bundle extras = sbn.getNotification().extras;
+                CharSequence conversation = extras.getCharSequence(EXTRA_CONVERSATION_TITLE);
+                onMessage(extras.getString(EXTRA_TITLE), peopleOf(extras),
+                        conversation == null ? null : conversation.toString(),
+                        extras.getCharSequence(EXTRA_TEXT), sbn.getNotification().when);
+            }
+            saveUpdatedPersons();
+        }
+    }
 
-                // Person does not have a custom ringtone assigned, so play default sound.
-                if (person == null) {
-                    if (dt < 800) return;
-                    lastUnknownNotificationTime = System.currentTimeMillis();
-                    playDefaultTone();
-                    return;
-                }
+    /**
+     * Save the contacts collected in updatedPersons with a single write.
+     */
+    private void saveUpdatedPersons() {
+        if (updatedPersons.isEmpty()) return;
+        try {
+            ContactsManager.putContacts(this, updatedPersons);
+        } catch (Exception e) {
+            Log.e(TAG, e.toString());
+        }
+        updatedPersons.clear();
+    }
 
-                // Check if ringtone was already played for that person
-                for (Long time : person.messageTimestamps) {
-                    if (time.equals(msgLongDate)) {
-                        Log.d(TAG, "Message already exists. Disregarding.");
-                        return;
-                    }
+    /**
+     * Returns the tel: and contact URIs of the people a notification is about, or null if it
+     * names none.
+     */
+    @SuppressWarnings("deprecation")
+    private static String[] peopleOf(Bundle extras) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            ArrayList<Person> people = extras.getParcelableArrayList(EXTRA_PEOPLE_LIST);
+            if (people != null && !people.isEmpty()) {
+                ArrayList<String> uris = new ArrayList<>(people.size());
+                for (Person person : people) {
+                    if (person.getUri() != null) uris.add(person.getUri());
                 }
-
-                // Check if last message from this person was longer than 500ms ago
-                if (person.messageTimestamps.size() > 0 && System.currentTimeMillis() -
-                        person.messageTimestamps.get(person.messageTimestamps.size() - 1) < 500)
-                    return;
-
-                // add timestamp to person and update him
-                person.messageTimestamps.add(msgLongDate);
-                ContactsManager.putContact(this, person);
-
-                // Play vibration and notification
-                playNotificationTone(person.ringtoneURI);
-                VibrationsManager.vibrateByName(this, person.vibrateURI);
-            } catch (Exception e) {
-                Log.e(TAG, e.toString());
+                return uris.isEmpty() ? null : uris.toArray(new String[0]);
             }
         }
+        String[] people = extras.getStringArray(EXTRA_PEOPLE);
+        return people == null || people.length == 0 ? null : people;
     }
 
     /**
-     * Plays the default notification and vibration pattern
+     * Handle a single message: play the tone of a matching rule, of the custom contact who sent
+     * it, or the default tone.
+     * @param msgFrom Name of the sender
+     * @param people tel: or contact URIs of the sender. May be null
+     * @param conversation Title of the group chat. May be null
+     * @param text Text of the message. May be null
+     * @param msgLongDate Time the message was sent
      */
-    private void playDefaultTone() {
-        playNotificationTone(ContactsManager.getDefaultToneString(this));
-        VibrationsManager.vibrateByName(this, "Default");
+    private void onMessage(String msgFrom, String[] people, String conversation,
+                           CharSequence text, Long msgLongDate) {
+        // No message from, exiting
+        if (msgFrom == null) return;
+
+        // Message is from whatsapp itself, not from user. exiting
+        else if (msgFrom.toLowerCase().contains("whatsapp")) return;
+
+        try {
+            // Rule matching the text, sender or group chat. Null if none matches
+            AlertRule rule = AlertRules.match(this, msgFrom, conversation, text);
+
+            // Time since last played notification sound. We don't want to spam!
+            long dt = System.currentTimeMillis() - lastUnknownNotificationTime;
+
+            // Try to get the CustomRingerPerson, or the default tone if there is none
+            SenderResolver.Resolution resolution = senders.resolve(msgFrom, people);
+            CustomRingerPerson person = resolution.person;
+
+            // Person does not have a custom ringtone assigned, so play default sound.
+            if (person == null) {
+                if (dt < 800) return;
+                lastUnknownNotificationTime = System.currentTimeMillis();
+                if (rule != null) playRule(rule);
+                else alertScheduler.enqueue(resolution.profile, AlertScheduler.PRIORITY_DEFAULT);
+                return;
+            }
+
+            // Check if ringtone was already played for that person
+            for (Long time : person.messageTimestamps) {
+                if (time.equals(msgLongDate)) {
+                    Log.d(TAG, "Message already exists. Disregarding.");
+                    return;
+                }
+            }
+
+            // Check if last message from this person was longer than 500ms ago
+            if (person.messageTimestamps.size() > 0 && System.currentTimeMillis() -
+                    person.messageTimestamps.get(person.messageTimestamps.size() - 1) < 500)
+                return;
+
+            // add timestamp to person, he is saved once the whole notification is handled
+            person.messageTimestamps.add(msgLongDate);
+            if (!updatedPersons.contains(person)) updatedPersons.add(person);
+
+            // Play vibration and notification. An active schedule window beats rules
+            AlertProfile scheduled = resolution.scheduledAt(System.currentTimeMillis());
+            if (scheduled != null)
+                alertScheduler.enqueue(scheduled, AlertScheduler.PRIORITY_CONTACT);
+            else if (rule != null) playRule(rule);
+            else alertScheduler.enqueue(resolution.profile, AlertScheduler.PRIORITY_CONTACT);
+        } catch (Exception e) {
+            Log.e(TAG, e.toString());
+        }
     }
 
     /**
-     * Plays a given notification tone
-     * @param tone The name of the tone to play
+     * Plays the notification and vibration pattern of a matched alert rule
      */
-    private void playNotificationTone(String tone) {
-        Ringtone player = RingtoneManager.getRingtone(this, Uri.parse(tone));
-        AudioAttributes attributes = new AudioAttributes.Builder()
-                .setUsage(AudioAttributes.USAGE_NOTIFICATION)
-                .build();
-        player.setAudioAttributes(attributes);
-        player.play();
+    private void playRule(AlertRule rule) {
+        alertScheduler.enqueue(senders.profile(rule.ringtoneURI, rule.vibrateURI),
+                AlertScheduler.PRIORITY_CONTACT);
     }
 }
@@ -0,0 +1,169 @@
+package com.tzgames.ringer.services;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import com.tzgames.ringer.data.ContactsManager;
+import com.tzgames.ringer.data.ContactsManager.AlertWindow;
+import com.tzgames.ringer.data.ContactsManager.CustomRingerPerson;
+import com.tzgames.ringer.data.VibrationsManager;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Memoizes which tone and vibration belong to a sender name. Most messages come from senders
+ * without a custom ringtone, so unknown senders are cached too, all sharing one resolution with
+ * the default tone and vibration. A repeated sender then costs a single cache lookup without
+ * touching the contacts list or the disk.
+ *
+ * Tones and vibrations are compiled into AlertProfiles, which are shared by all senders and rules
+ * with the same tone and vibration. A sender's schedule is compiled into an AlertTimetable once,
+ * so finding the profile for the current time does not walk the schedule.
+ *
+ * The cache is tied to the versions of the contacts list and the vibrations and is dropped as soon
+ * as either changes, so added, removed or edited contacts are picked up by the next message.
+ * Must be called on the main thread, like ContactsManager.
+ */
+class SenderResolver {
+    /** Max number of cached senders */
+    private static final int MAX_SENDERS = 256;
+
+    /**
+     * Tone and vibration to play for a sender.
+     */
+    static class Resolution {
+        /** The custom contact of the sender. Null if the sender has no custom ringtone */
+        final CustomRingerPerson person;
+
+        /** The tone and vibration to play outside of the sender's scheduled windows */
+        final AlertProfile profile;
+
+        /** The sender's compiled schedule. Null if the sender has none */
+        final AlertTimetable timetable;
+
+        Resolution(CustomRingerPerson _person, AlertProfile _profile, AlertTimetable _timetable) {
+            person = _person;
+            profile = _profile;
+            timetable = _timetable;
+        }
+
+        /**
+         * Returns the tone and vibration of the sender's scheduled window at a time, usually now.
+         * @return The window's profile, or null if no window is active
+         */
+        AlertProfile scheduledAt(long time) {
+            return timetable == null ? null : timetable.at(time);
+        }
+    }
+
+    private final Context context;
+
+    /** Resolutions by raw sender name, followed by the sender's URIs if there are any */
+    private final LruCache<String, Resolution> cache = new LruCache<>(MAX_SENDERS);
+
+    /** Profiles by ringtone URI and vibration name */
+    private final HashMap<String, AlertProfile> profiles = new HashMap<>();
+
+    /** Resolution shared by all unknown senders. Null until first needed */
+    private Resolution defaultResolution = null;
+
+    /** Contacts list version the cached resolutions belong to */
+    private long version = -1;
+
+    /** Vibrations version the cached profiles belong to */
+    private long vibrationsVersion = -1;
+
+    SenderResolver(Context ctx) {
+        context = ctx.getApplicationContext();
+    }
+
+    /**
+     * Returns the tone and vibration of a sender.
+     * @param sender Raw sender name as shown in the notification
+     * @param people tel: or contact URIs of the sender. May be null
+     */
+    Resolution resolve(String sender, String[] people) {
+        if (isStale()) invalidate();
+
+        String key = sender;
+        if (people != null) {
+            StringBuilder builder = new StringBuilder(sender);
+            for (String uri : people) builder.append('\n').append(uri);
+            key = builder.toString();
+        }
+
+        Resolution resolution = cache.get(key);
+        if (resolution != null) return resolution;
+
+        CustomRingerPerson person = ContactsManager.findContact(context, sender, people);
+        if (person != null) {
+            resolution = new Resolution(person, profile(person.ringtoneURI, person.vibrateURI),
+                    timetable(person.schedule));
+        } else {
+            if (defaultResolution == null)
+                defaultResolution = new Resolution(null, profile(
+                        ContactsManager.getDefaultToneString(context),
+                        ContactsManager.getDefaultVibString(context)), null);
+            resolution = defaultResolution;
+        }
+
+        // reading the defaults may have created the default contact, and so a new version
+        if (version != ContactsManager.getVersion()) {
+            cache.evictAll();
+            version = ContactsManager.getVersion();
+        }
+        cache.put(key, resolution);
+        return resolution;
+    }
+
+    /**
+     * Returns the compiled profile of a tone and vibration, e.g. of an alert rule.
+     * @param ringtoneURI Tone to play, or ContactsManager.NONE_RINGTONE_ID for no tone
+     * @param vibrationName Name of the vibration to play
+     */
+    AlertProfile profile(String ringtoneURI, String vibrationName) {
+        if (isStale()) invalidate();
+        String key = ringtoneURI + '\n' + vibrationName;
+        AlertProfile profile = profiles.get(key);
+        if (profile == null) {
+            profile = AlertProfile.compile(context, ringtoneURI, vibrationName);
+            profiles.put(key, profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Compile the schedule of a contact.
+     * @param schedule The windows of the contact. May be null
+     * @return The timetable, or null if no window ever applies
+     */
+    private AlertTimetable timetable(List<AlertWindow> schedule) {
+        if (schedule == null || schedule.isEmpty()) return null;
+        AlertProfile[] windowProfiles = new AlertProfile[schedule.size()];
+        for (int i = 0; i < windowProfiles.length; i++) {
+            AlertWindow window = schedule.get(i);
+            windowProfiles[i] = profile(window.ringtoneURI, window.vibrateURI);
+        }
+        return AlertTimetable.compile(schedule, windowProfiles);
+    }
+
+    /**
+     * Returns true if contacts or vibrations changed since the cache was filled.
+     */
+    private boolean isStale() {
+        return version != ContactsManager.getVersion()
+                || vibrationsVersion != VibrationsManager.getVersion(context);
+    }
+
+    /**
+     * Forget all resolutions and profiles.
+     */
+    void invalidate() {
+        cache.evictAll();
+        profiles.clear();
+        defaultResolution = null;
+        version = ContactsManager.getVersion();
+        vibrationsVersion = VibrationsManager.getVersion(context);
+    }
+}
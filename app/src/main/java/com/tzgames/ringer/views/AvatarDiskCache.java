@@ -0,0 +1,180 @@
+package com.tzgames.ringer.views;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Disk cache of contact pictures that are already cropped to a circle and scaled to the size they
+ * are displayed at. Lets the contact list open with one small file read per row instead of
+ * decoding and rounding every contact photo again on each cold start.
+ *
+ * Entries are keyed by a hash of the photoURI, the version of the picture and the size. The
+ * version is the contact's last-updated time as stored by ContactsSync, so an edited contact
+ * photo gets a new entry without asking the address book. Files are written to a temporary file first and renamed,
+ * so a crash never leaves a truncated entry. The cache directory is capped at MAX_BYTES; least
+ * recently used entries are deleted first. Only used from AvatarLoader's background threads.
+ */
+class AvatarDiskCache {
+    /** Debug Tag */
+    private static final String TAG = "AvatarDiskCache";
+
+    /** Sub directory of the app cache dir that holds the thumbnails */
+    private static final String CACHE_DIR = "avatars";
+
+    /** Maximum total size of all cached thumbnails */
+    private static final long MAX_BYTES = 2 * 1024 * 1024;
+
+    /** Directory holding the thumbnails. Null until init() was called */
+    private static File dir;
+
+    /** Total size of the files in dir. Negative if not known yet */
+    private static long totalBytes = -1;
+
+    /**
+     * Set the directory of the cache and create it if necessary.
+     * @param ctx The application context
+     */
+    static synchronized void init(Context ctx) {
+        if (dir != null) return;
+        dir = new File(ctx.getCacheDir(), CACHE_DIR);
+        if (!dir.exists() && !dir.mkdirs())
+            Log.e(TAG, "Failed to create avatar cache dir: " + dir.getAbsolutePath());
+    }
+
+    /**
+     * Build the cache key of a picture.
+     * @param photoURI Content URI of the picture
+     * @param version When the picture last changed, 0 if not known
+     * @param size Size in pixels of the thumbnail
+     */
+    static String key(String photoURI, long version, int size) {
+        String raw = photoURI + "|" + size + "|" + version;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(raw.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(raw.hashCode());
+        }
+    }
+
+    /**
+     * Read a cached thumbnail.
+     * @return The circular thumbnail, or null if it is not cached
+     */
+    static Bitmap get(String key) {
+        File file = new File(dir, key + ".png");
+        if (!file.exists()) return null;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        if (bitmap == null) {
+            // corrupt entry, get rid of it
+            remove(file);
+            return null;
+        }
+        // mark as recently used
+        if (!file.setLastModified(System.currentTimeMillis()))
+            Log.d(TAG, "Failed to touch " + file.getName());
+        return bitmap;
+    }
+
+    /**
+     * Crop a decoded picture to a circle of size x size pixels, store it and return it.
+     * @param key Key from key()
+     * @param source The decoded picture. Is scaled and center cropped to fit the circle.
+     * @param size Size in pixels of the thumbnail
+     * @return The circular thumbnail
+     */
+    static Bitmap put(String key, Bitmap source, int size) {
+        Bitmap rounded = makeCircular(source, size);
+        File file = new File(dir, key + ".png");
+        // unique per thread, since both loader threads may write the same key
+        File tmpFile = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            rounded.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            if (!tmpFile.renameTo(file)) throw new Exception("Failed to replace " + file.getName());
+            added(file.length());
+        } catch (Exception e) {
+            Log.e(TAG, e.toString());
+            if (tmpFile.exists() && !tmpFile.delete())
+                Log.d(TAG, "Failed to delete " + tmpFile.getName());
+        }
+        return rounded;
+    }
+
+    /**
+     * Draw source, center cropped and scaled, into a circle on a transparent size x size bitmap.
+     */
+    private static Bitmap makeCircular(Bitmap source, int size) {
+        Bitmap output = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        BitmapShader shader = new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+
+        float scale = (float) size / Math.min(source.getWidth(), source.getHeight());
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((size - source.getWidth() * scale) / 2f,
+                (size - source.getHeight() * scale) / 2f);
+        shader.setLocalMatrix(matrix);
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        paint.setShader(shader);
+        new Canvas(output).drawCircle(size / 2f, size / 2f, size / 2f, paint);
+        return output;
+    }
+
+    /**
+     * Account for a newly written file and trim the cache if it grew too big.
+     */
+    private static synchronized void added(long bytes) {
+        if (totalBytes < 0) {
+            totalBytes = 0;
+            File[] files = dir.listFiles();
+            if (files != null) for (File f : files) totalBytes += f.length();
+        } else {
+            totalBytes += bytes;
+        }
+        if (totalBytes > MAX_BYTES) trim();
+    }
+
+    /**
+     * Delete least recently used files until the cache is below three quarters of MAX_BYTES.
+     */
+    private static void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long la = a.lastModified(), lb = b.lastModified();
+                return la < lb ? -1 : (la == lb ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            if (totalBytes <= MAX_BYTES * 3 / 4) break;
+            remove(f);
+        }
+    }
+
+    /**
+     * Delete a cache file and update the size bookkeeping.
+     */
+    private static synchronized void remove(File file) {
+        long length = file.length();
+        if (file.delete() && totalBytes >= 0) totalBytes -= length;
+    }
+}
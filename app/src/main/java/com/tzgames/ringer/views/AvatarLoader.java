@@ -0,0 +1,234 @@
+package com.tzgames.ringer.views;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.appcompat.content.res.AppCompatResources;
+
+import com.tzgames.ringer.R;
+
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads contact profile pictures into ImageViews. Pictures are decoded on a small background pool
+ * and downsampled to the size they are displayed at, then kept in an in-memory LRU cache whose
+ * budget is counted in bytes. Decoded pictures are also stored as circular thumbnails in
+ * AvatarDiskCache, which is checked before decoding. A pending load is cancelled when its
+ * ImageView is recycled or asked to show a different picture.
+ */
+public class AvatarLoader {
+    /** Debug Tag */
+    private static final String TAG = "AvatarLoader";
+
+    /** Number of threads that decode pictures */
+    private static final int POOL_SIZE = 2;
+
+    /** Fraction of the app's max heap the memory cache may use (1 / MEMORY_FRACTION) */
+    private static final int MEMORY_FRACTION = 16;
+
+    /** Decodes pictures in the background. Idle threads time out so nothing lingers. */
+    private static ExecutorService executor;
+
+    /** Decoded pictures by photoURI, version and size */
+    private static LruCache<String, Bitmap> memoryCache;
+
+    /** Used to hand decoded pictures back to the main thread */
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * A single load of a photoURI into an ImageView. Stored as the ImageView's tag so that a
+     * newer load for the same view can cancel it.
+     */
+    private static class Request implements Runnable {
+        final String key;
+        final String photoURI;
+        final long version;
+        final int size;
+        final ImageView view;
+        final ContentResolver resolver;
+        Future<?> future;
+        volatile boolean cancelled = false;
+
+        Request(String _key, String _photoURI, long _version, int _size, ImageView _view) {
+            key = _key;
+            photoURI = _photoURI;
+            version = _version;
+            size = _size;
+            view = _view;
+            resolver = _view.getContext().getContentResolver();
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            Bitmap bitmap = null;
+            try {
+                // prefer the already rounded thumbnail from disk, decode the photo otherwise
+                String diskKey = AvatarDiskCache.key(photoURI, version, size);
+                bitmap = AvatarDiskCache.get(diskKey);
+                if (bitmap == null && !cancelled) {
+                    Bitmap decoded = decode(resolver, Uri.parse(photoURI), size);
+                    if (decoded != null) bitmap = AvatarDiskCache.put(diskKey, decoded, size);
+                }
+            } catch (Exception e) {
+                Log.d(TAG, "Failed to decode " + photoURI + ": " + e.toString());
+            }
+            if (bitmap != null) memoryCache.put(key, bitmap);
+
+            final Bitmap result = bitmap;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled || view.getTag(R.id.avatar_request_tag) != Request.this) return;
+                    view.setTag(R.id.avatar_request_tag, null);
+                    if (result != null) view.setImageBitmap(result);
+                    else setDefault(view);
+                }
+            });
+        }
+    }
+
+    /**
+     * Lazily create the decode pool, memory cache and disk cache.
+     */
+    private static void init(Context ctx) {
+        if (executor != null) return;
+        AvatarDiskCache.init(ctx.getApplicationContext());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+
+        int budget = (int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+        memoryCache = new LruCache<String, Bitmap>(budget) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Show the picture at photoURI in the given view, downsampled to size x size pixels. Must be
+     * called from the main thread. Cancels whatever load was previously pending for the view.
+     * @param view The ImageView to display the picture in
+     * @param photoURI Content URI of the picture. If null, the default no-face image is shown
+     * @param version When the picture last changed, e.g. CustomRingerPerson.photoTimestamp. An
+     *                edited picture keeps its URI, so this tells the cached copies apart. 0 if
+     *                not known
+     * @param size Size in pixels the picture is displayed at
+     */
+    public static void load(@NonNull ImageView view, String photoURI, long version, int size) {
+        init(view.getContext());
+        cancel(view);
+
+        if (photoURI == null) {
+            setDefault(view);
+            return;
+        }
+
+        String key = photoURI + "@" + version + "@" + size;
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        // show the view's background (the no-face image) until the picture is decoded
+        view.setImageDrawable(null);
+        Request request = new Request(key, photoURI, version, size, view);
+        view.setTag(R.id.avatar_request_tag, request);
+        request.future = executor.submit(request);
+    }
+
+    /**
+     * Cancel the pending load of the given view, if any. Called when the view is recycled.
+     */
+    public static void cancel(@NonNull ImageView view) {
+        Object tag = view.getTag(R.id.avatar_request_tag);
+        if (tag instanceof Request) {
+            Request request = (Request) tag;
+            request.cancelled = true;
+            if (request.future != null) request.future.cancel(false);
+            view.setTag(R.id.avatar_request_tag, null);
+        }
+    }
+
+    /**
+     * Show the default no-face image
+     */
+    private static void setDefault(ImageView view) {
+        view.setImageDrawable(
+                AppCompatResources.getDrawable(view.getContext(), R.drawable.ic_default_user));
+    }
+
+    /**
+     * Decode the picture at uri so that its shorter side is about size pixels.
+     */
+    private static Bitmap decode(ContentResolver resolver, Uri uri, int size) throws Exception {
+        if (Build.VERSION.SDK_INT >= 28) return decodeWithImageDecoder(resolver, uri, size);
+
+        // read the dimensions only, then decode with the largest power of two sample size that
+        // keeps the picture at least as big as the target size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) return null;
+        BitmapFactory.decodeStream(in, null, options);
+        in.close();
+
+        int sample = 1;
+        int shortSide = Math.min(options.outWidth, options.outHeight);
+        while (shortSide / (sample * 2) >= size) sample *= 2;
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        in = resolver.openInputStream(uri);
+        if (in == null) return null;
+        Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+        in.close();
+        return bitmap;
+    }
+
+    /**
+     * Decode with ImageDecoder, letting it scale while decoding.
+     */
+    @RequiresApi(28)
+    private static Bitmap decodeWithImageDecoder(ContentResolver resolver, Uri uri, final int size)
+            throws Exception {
+        ImageDecoder.Source source = ImageDecoder.createSource(resolver, uri);
+        return ImageDecoder.decodeBitmap(source, new ImageDecoder.OnHeaderDecodedListener() {
+            @Override
+            public void onHeaderDecoded(@NonNull ImageDecoder decoder,
+                                        @NonNull ImageDecoder.ImageInfo info,
+                                        @NonNull ImageDecoder.Source source) {
+                int w = info.getSize().getWidth();
+                int h = info.getSize().getHeight();
+                int shortSide = Math.min(w, h);
+                if (shortSide > size) {
+                    decoder.setTargetSize(Math.max(1, w * size / shortSide),
+                            Math.max(1, h * size / shortSide));
+                }
+                // software bitmaps can be drawn through shaders and into other bitmaps
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            }
+        });
+    }
+}
@@ -0,0 +1,258 @@
+package com.tzgames.ringer.views;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import androidx.annotation.NonNull;
+import androidx.appcompat.content.res.AppCompatResources;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.tzgames.ringer.R;
+import com.tzgames.ringer.data.ContactsManager;
+import com.tzgames.ringer.data.ContactsManager.CustomRingerPerson;
+import com.tzgames.ringer.data.RingtoneTitleCache;
+import com.tzgames.ringer.data.VibrationsManager;
+
+import java.util.List;
+
+/**
+ * RecyclerView adapter that displays the contacts that have a custom ringtone assigned. The list
+ * is submitted as immutable ContactItem snapshots; AsyncListDiffer computes the difference to the
+ * previous list on a background thread so that only the rows that actually changed get rebound.
+ * See R.layout.list_item_contact to see what a row looks like.
+ */
+public class ContactListAdapter extends RecyclerView.Adapter<ContactListAdapter.ContactViewHolder> {
+
+    /** Callbacks used by ContactsFragment to react to clicks on a row */
+    public interface OnContactClickListener {
+        /** Called when the row of the contact with the given id was clicked */
+        void onContactClick(long id);
+
+        /** Called when the row of the contact with the given id was long clicked */
+        void onContactLongClick(long id);
+    }
+
+    /**
+     * Immutable snapshot of a CustomRingerPerson. CustomRingerPerson objects are mutated in place
+     * by MainActivity, so the differ needs its own copy of the fields that end up on screen.
+     */
+    public static class ContactItem {
+        /** CustomRingerPerson.id of the contact. Never -1, which RecyclerView reserves */
+        public final long id;
+        public final String name;
+        final String photoURI;
+        final long photoTimestamp;
+        final String ringtoneURI;
+        final String vibrateURI;
+
+        /** Whether the contact's ringtone is the same as the current default ringtone */
+        final boolean isDefaultTone;
+
+        public ContactItem(CustomRingerPerson person, String defaultTone) {
+            id = person.id;
+            name = person.name;
+            photoURI = person.photoURI;
+            photoTimestamp = person.photoTimestamp;
+            ringtoneURI = person.ringtoneURI;
+            vibrateURI = person.vibrateURI;
+            isDefaultTone = person.ringtoneURI.equals(defaultTone);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ContactItem)) return false;
+            ContactItem other = (ContactItem) o;
+            return id == other.id
+                    && isDefaultTone == other.isDefaultTone
+                    && photoTimestamp == other.photoTimestamp
+                    && equal(name, other.name)
+                    && equal(photoURI, other.photoURI)
+                    && equal(ringtoneURI, other.ringtoneURI)
+                    && equal(vibrateURI, other.vibrateURI);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (id ^ (id >>> 32));
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /** Rows represent the same contact if they have the same id, even if it was renamed. */
+    private static final DiffUtil.ItemCallback<ContactItem> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<ContactItem>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ContactItem oldItem, @NonNull ContactItem newItem) {
+            return oldItem.id == newItem.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ContactItem oldItem, @NonNull ContactItem newItem) {
+            return oldItem.equals(newItem);
+        }
+    };
+
+    /** Computes list differences off the main thread and dispatches the minimal updates */
+    private final AsyncListDiffer<ContactItem> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+
+    /** Context used to inflate rows and resolve resources */
+    private final Context context;
+
+    /** Receiver of row clicks */
+    private final OnContactClickListener listener;
+
+    /** Rebinds the rows whose ringtone title just got resolved */
+    private final RingtoneTitleCache.OnTitleResolvedListener titleListener =
+            new RingtoneTitleCache.OnTitleResolvedListener() {
+        @Override
+        public void onTitleResolved(String ringtoneURI) {
+            List<ContactItem> items = differ.getCurrentList();
+            for (int i = 0; i < items.size(); i++) {
+                if (ringtoneURI == null || ringtoneURI.equals(items.get(i).ringtoneURI))
+                    notifyItemChanged(i);
+            }
+        }
+    };
+
+    public ContactListAdapter(Context ctx, OnContactClickListener clickListener) {
+        context = ctx;
+        listener = clickListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Replace the displayed contacts. The diff is computed in the background and only changed
+     * rows are rebound once it completes.
+     * @param items The new list of contact snapshots
+     */
+    public void submitList(List<ContactItem> items) {
+        differ.submitList(items);
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        RingtoneTitleCache.addListener(titleListener);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        RingtoneTitleCache.removeListener(titleListener);
+    }
+
+    @Override
+    public int getItemCount() {
+        return differ.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return differ.getCurrentList().get(position).id;
+    }
+
+    @Override
+    @NonNull
+    public ContactViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(context).inflate(R.layout.list_item_contact, parent, false);
+        return new ContactViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ContactViewHolder holder, int position) {
+        holder.bind(differ.getCurrentList().get(position));
+    }
+
+    /** Stop decoding the picture of a row that scrolled out of view */
+    @Override
+    public void onViewRecycled(@NonNull ContactViewHolder holder) {
+        AvatarLoader.cancel(holder.picture);
+    }
+
+    /**
+     * Holds the views of one row so they don't have to be looked up again when the row is
+     * recycled for another contact.
+     */
+    class ContactViewHolder extends RecyclerView.ViewHolder
+            implements View.OnClickListener, View.OnLongClickListener {
+        private final TextView name;
+        private final RoundedImageView picture;
+        private final TextView tone;
+        private final TextView defaultLabel;
+        private final TextView icons;
+
+        /** Id of the contact currently bound to this row */
+        private long contactId;
+
+        ContactViewHolder(View view) {
+            super(view);
+            name = view.findViewById(R.id.contact_name_txt);
+            picture = view.findViewById(R.id.contact_pic);
+            tone = view.findViewById(R.id.contact_notif_txt);
+            defaultLabel = view.findViewById(R.id.contact_default_txt);
+            icons = view.findViewById(R.id.contact_icons);
+            view.setOnClickListener(this);
+            view.setOnLongClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            listener.onContactClick(contactId);
+        }
+
+        @Override
+        public boolean onLongClick(View view) {
+            listener.onContactLongClick(contactId);
+            return true;
+        }
+
+        /**
+         * Fill this row with the given contact: name, picture, tone, vibration and on/off icons.
+         */
+        void bind(ContactItem item) {
+            contactId = item.id;
+            name.setText(item.name);
+
+            // load the image stored in contact in the background. Shows no-face image if none
+            AvatarLoader.load(picture, item.photoURI, item.photoTimestamp,
+                    picture.getLayoutParams().width);
+
+            // Add notification tone under bolded name. If the title is not cached yet, the row
+            // is rebound once RingtoneTitleCache resolved it
+            String title = RingtoneTitleCache.getShortTitle(context, item.ringtoneURI);
+            if (title == null) title = "";
+
+            // Only label the contact as [Default] if he uses the default ringtone
+            defaultLabel.setVisibility(item.isDefaultTone ? View.VISIBLE : View.GONE);
+
+            // If person has a default vibration pattern, do not write the name of the pattern
+            if (!item.vibrateURI.equals(VibrationsManager.DEFAULT_VIBRATION))
+                title = title + " | " + item.vibrateURI;
+
+            tone.setText(title);
+
+            // If person has ringtones or vibrations turned off, draw appropriate on/off icons
+            Drawable left = item.ringtoneURI.equals(ContactsManager.NONE_RINGTONE_ID)
+                    ? AppCompatResources.getDrawable(context, R.drawable.ic_notifications_off_black_24dp)
+                    : AppCompatResources.getDrawable(context, R.drawable.ic_notifications_active_black_24dp);
+            Drawable right = !item.vibrateURI.equals(VibrationsManager.NONE_VIBRATION)
+                    ? AppCompatResources.getDrawable(context, R.drawable.ic_vibration_black_24dp)
+                    : null;
+            icons.setCompoundDrawablesWithIntrinsicBounds(left, null, right, null);
+            icons.setText("");
+            if (right != null) {
+                icons.setText(" | ");
+                icons.setTextSize(17);
+                icons.setTypeface(Typeface.create("sans-serif-medium", Typeface.NORMAL));
+            }
+        }
+    }
+}
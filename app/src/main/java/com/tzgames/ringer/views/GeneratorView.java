@@ -2,14 +2,13 @@ package com.tzgames.ringer.views;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.animation.AnimationUtils;
 
 import com.tzgames.ringer.R;
 
@@ -20,27 +19,31 @@ import java.util.ArrayList;
  * with width proportional to how long the user tapped and held the screen. This view gives the
  * user a visual representation of how his generated vibrations look like. Callbacks of this view
  * are used to generate the actual long[] sequences.
+ *
+ * Frames are only requested (with postInvalidateOnAnimation) while there are boxes on screen, so
+ * the view stays idle when nothing moves. Boxes move by the time elapsed since the previous frame
+ * and are recycled through a small pool.
  */
 public class GeneratorView extends View {
 
-    /** Delay in between frame draws */
-    private static final int DRAW_MS = 40;
-
-    /** Cached bitmap onto which to paint the canvas */
-    private Bitmap mBitmap;
+    /** How fast the rects move across the screen, in pixels per millisecond */
+    private static final float SPEED = 0.5f;
 
     /** Cached paint used to draw the rectangles */
     private final Paint mPaint;
 
-    /** Cached handler used to schedule frame draws */
-    private final Handler mHandler;
-
     /** Array of current touchBoxes that are drawn to canvas */
     private final ArrayList<TouchBox> touchBoxes;
 
+    /** TouchBoxes that left the screen and can be reused */
+    private final ArrayList<TouchBox> freeBoxes;
+
     /** The latest / newest added touchbox */
     private TouchBox currentTouchBox = null;
 
+    /** Animation time of the previous frame. 0 while no frames are being drawn */
+    private long lastFrameTime = 0;
+
     /** Callback listener for VibrationGenFragment to handle touches */
     private GeneratorTouchListener generatorTouchListener;
 
@@ -54,31 +57,31 @@ public class GeneratorView extends View {
 
         /** Current width of rect. If the user is pressing the screen, this is 0. Only once
          * user lets go of screen, the rect will have a fixed width. */
-        private float width = 0;
+        private float width;
 
         /** Private rect */
-        private final Rect rect;
-
-        /** How fast the rects move across the screen */
-        private static final float SPEED = 20.0f;
+        private final Rect rect = new Rect();
 
         /**
-         * Initializes rect dimensions so that starts off screen.
+         * Initializes rect dimensions so that starts off screen. Called whenever the box is
+         * taken from the pool.
          */
-        private TouchBox() {
-            rect = new Rect();
+        private void reset() {
             rect.bottom = getHeight();
             rect.top = 0;               // from top to bottom
             x = getWidth();             // width view. Position it to the far right out of bounds
+            rect.left = getWidth();
+            width = 0;
         }
 
         /**
          * Update the coordinates of the rectangle and return it, ready to be drawn.
+         * @param elapsed Milliseconds since the previous frame
          * @return Return rect if ready to draw. If out of bounds, return null.
          */
-        private Rect draw() {
-            // move rect to right as time passes
-            rect.left = (int) (x -= SPEED);
+        private Rect draw(long elapsed) {
+            // move rect to left as time passes
+            rect.left = (int) (x -= SPEED * elapsed);
 
             // if rect has defined width, user already let go the tap, so draw it with its width
             if (width > 0) rect.right = (int)(x + width);
@@ -92,15 +95,16 @@ public class GeneratorView extends View {
         }
 
         /**
-         * Called when user stops touching screen. Gives the rect its final, fixed width.
+         * Called when user stops touching screen. Gives the rect its final, fixed width. At least
+         * 1, since a width of 0 means the box is still growing and would never leave the screen.
          */
         private void touchOver() {
-            width = getWidth() - rect.left;
+            width = Math.max(1, getWidth() - x);
         }
     }
 
     /**
-     * Constructor. Creates bitmap paint, frame update handler, and list of touch boxes.
+     * Constructor. Creates paint and the lists of touch boxes.
      */
     public GeneratorView(Context ctx, AttributeSet set) {
         super(ctx, set);
@@ -109,45 +113,45 @@ public class GeneratorView extends View {
         mPaint.setColor(getResources().getColor(R.color.colorPrimaryLight));
         mPaint.setStyle(Paint.Style.FILL);
 
-        mHandler = new Handler();
         touchBoxes = new ArrayList<>(3);
+        freeBoxes = new ArrayList<>(3);
     }
 
     /**
-     * Create a new bigmap with updated width & height. Called when view dimensions change.
-     * @param w NewWidth
-     * @param h NewHeight
-     */
-    @Override
-    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-        super.onSizeChanged(w, h, oldw, oldh);
-        mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-    }
-
-    /**
-     * Called whenever view is invalidaded which happens every FRAME_MS miliseconds. This is
-     * the loop that creates the illusion of fluid motion
+     * Called for every animation frame while boxes are on screen. Moves the boxes by the time
+     * since the previous frame, then requests the next frame unless all boxes are gone.
      * @param canvas Canvas to draw the rectangles on
      */
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        canvas.drawBitmap(mBitmap, 0, 0, null);
 
-        // draw all the boxes. Remove them if they are no longer inside view
+        long now = AnimationUtils.currentAnimationTimeMillis();
+        long elapsed = lastFrameTime == 0 ? 0 : now - lastFrameTime;
+        lastFrameTime = now;
+
+        // draw all the boxes. Return them to the pool if they are no longer inside view
         for (int i = 0; i < touchBoxes.size(); i++) {
-            Rect r = touchBoxes.get(i).draw();
+            Rect r = touchBoxes.get(i).draw(elapsed);
             if (r != null) canvas.drawRect(r, mPaint);
-            else touchBoxes.remove(touchBoxes.get(i--));
+            else freeBoxes.add(touchBoxes.remove(i--));
         }
 
-        // schedule next frame draw
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                invalidate();
-            }
-        }, DRAW_MS);
+        // schedule next frame draw only while something moves
+        if (touchBoxes.isEmpty()) lastFrameTime = 0;
+        else postInvalidateOnAnimation();
+    }
+
+    /**
+     * Drop all boxes, which also stops the animation. It restarts with the next touch.
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        freeBoxes.addAll(touchBoxes);
+        touchBoxes.clear();
+        currentTouchBox = null;
+        lastFrameTime = 0;
     }
 
     /**
@@ -159,14 +163,19 @@ public class GeneratorView extends View {
     public boolean onTouchEvent(MotionEvent event) {
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
-                TouchBox t = new TouchBox();
+                TouchBox t = freeBoxes.isEmpty()
+                        ? new TouchBox() : freeBoxes.remove(freeBoxes.size() - 1);
+                t.reset();
                 touchBoxes.add(t);
                 currentTouchBox = t;
+
+                // first box on screen, start the animation
+                if (touchBoxes.size() == 1) postInvalidateOnAnimation();
                 generatorTouchListener.onTouchStarted(event.getEventTime());
                 generatorTouchListener.setRecentStartTime(event.getEventTime());
                 break;
             case MotionEvent.ACTION_UP:
-                currentTouchBox.touchOver();
+                if (currentTouchBox != null) currentTouchBox.touchOver();
                 generatorTouchListener.onTouchEnded(event.getEventTime());
                 generatorTouchListener.setRecentEndTime(event.getEventTime());
                 break;
@@ -0,0 +1,139 @@
+package com.tzgames.ringer.views;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.appcompat.widget.AppCompatCheckBox;
+import androidx.recyclerview.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.tzgames.ringer.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RecyclerView adapter for ContactImportActivity. Shows address book contacts with a checkbox
+ * each. Contacts are appended page by page as they are loaded.
+ */
+public class ImportContactAdapter extends RecyclerView.Adapter<ImportContactAdapter.ImportViewHolder> {
+
+    /**
+     * An address book contact that can be selected for import.
+     */
+    public static class Entry {
+        public final long contactId;
+        public final String name;
+        public final String photoURI;
+        /** CONTACT_LAST_UPDATED_TIMESTAMP of the contact */
+        public final long updated;
+        boolean checked = false;
+
+        public Entry(long _contactId, String _name, String _photoURI, long _updated) {
+            contactId = _contactId;
+            name = _name;
+            photoURI = _photoURI;
+            updated = _updated;
+        }
+    }
+
+    /** Callback used to ask whether another contact may be selected */
+    public interface SelectionPolicy {
+        /** @return True if one more contact may be selected on top of the current selection */
+        boolean canSelectMore(int selectedCount);
+    }
+
+    /** All loaded contacts, in display order */
+    private final ArrayList<Entry> entries = new ArrayList<>();
+
+    /** Number of checked entries */
+    private int selectedCount = 0;
+
+    private final Context context;
+    private final SelectionPolicy policy;
+
+    public ImportContactAdapter(Context ctx, SelectionPolicy selectionPolicy) {
+        context = ctx;
+        policy = selectionPolicy;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Append a newly loaded page of contacts.
+     */
+    public void addPage(List<Entry> page) {
+        int start = entries.size();
+        entries.addAll(page);
+        notifyItemRangeInserted(start, page.size());
+    }
+
+    /**
+     * @return The entries the user checked, in display order
+     */
+    public List<Entry> getSelected() {
+        List<Entry> selected = new ArrayList<>(selectedCount);
+        for (Entry e : entries) if (e.checked) selected.add(e);
+        return selected;
+    }
+
+    @Override
+    public int getItemCount() {
+        return entries.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return entries.get(position).contactId;
+    }
+
+    @Override
+    @NonNull
+    public ImportViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(context).inflate(R.layout.list_item_import_contact, parent, false);
+        return new ImportViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ImportViewHolder holder, int position) {
+        Entry entry = entries.get(position);
+        holder.name.setText(entry.name);
+        holder.checkBox.setChecked(entry.checked);
+        AvatarLoader.load(holder.picture, entry.photoURI, entry.updated,
+                holder.picture.getLayoutParams().width);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ImportViewHolder holder) {
+        AvatarLoader.cancel(holder.picture);
+    }
+
+    /**
+     * Holds the views of one row. Clicking the row toggles the selection.
+     */
+    class ImportViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        private final TextView name;
+        private final RoundedImageView picture;
+        private final AppCompatCheckBox checkBox;
+
+        ImportViewHolder(View view) {
+            super(view);
+            name = view.findViewById(R.id.import_contact_name_txt);
+            picture = view.findViewById(R.id.import_contact_pic);
+            checkBox = view.findViewById(R.id.import_contact_checkbox);
+            view.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) return;
+            Entry entry = entries.get(position);
+            if (!entry.checked && !policy.canSelectMore(selectedCount)) return;
+            entry.checked = !entry.checked;
+            selectedCount += entry.checked ? 1 : -1;
+            checkBox.setChecked(entry.checked);
+        }
+    }
+}
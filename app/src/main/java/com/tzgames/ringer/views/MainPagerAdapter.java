@@ -1,12 +1,18 @@
 package com.tzgames.ringer.views;
 
 import android.content.Context;
+import android.view.Choreographer;
+import android.view.ViewGroup;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentPagerAdapter;
 
+import java.util.List;
+
 import com.tzgames.ringer.R;
+import com.tzgames.ringer.data.ContactsManager;
+import com.tzgames.ringer.data.ContactsManager.ContactChange;
 import com.tzgames.ringer.fragments.main.ContactsFragment;
 import com.tzgames.ringer.fragments.main.DefaultFragment;
 import com.tzgames.ringer.fragments.main.HelpFragment;
@@ -16,10 +22,11 @@ import com.tzgames.ringer.fragments.main.HelpFragment;
  *  CONTACTS - index 0 - the fragment that shows the list of contacts that have custom ringtones
  *  DEFAULT - index 1 - the fragment that has tiles to update default ringtones / vibrations
  *  HELP - index 2 - the fragment that has help message, rating bar, and contact developer
- * By calling setDirty(index), the pager updates the corresponding views.
+ * Changes of the default ringtone / vibration published by ContactsManager refresh the DEFAULT
+ * page on the next frame, once per frame no matter how many arrived; the contacts list patches
+ * its own rows. Call release() once the adapter is no longer used.
  */
 public class MainPagerAdapter extends FragmentPagerAdapter {
-
     /** Fragment index that shows list view of all current contacts that have ringtones assigned */
     public static final int POSITION_CONTACTS_FRAG = 0;
 
@@ -35,12 +42,46 @@ public class MainPagerAdapter extends FragmentPagerAdapter {
     /** Array that holds the strings of the names of the three fragments */
     private final String[] tabTitles;
 
-    /** Position that is currently dirty and will be updated soon. -1 means nothing is dirty */
-    private int dirtyPosition = -1;
+    /** Whether a frame callback is already scheduled to refresh the DEFAULT page */
+    private boolean flushScheduled = false;
+
+    /** ContactsManager version of the latest change of the default ringtone / vibration */
+    private long defaultVersion = 0;
+
+    /** defaultVersion the DEFAULT page was last refreshed at */
+    private long refreshedDefaultVersion = 0;
+
+    /** Fragments that are currently instantiated, by position */
+    private final Fragment[] fragments = new Fragment[NUM_TABS];
 
     /** Context used throughout this class */
     private final Context context;
 
+    /** Refreshes the DEFAULT page at most once per frame */
+    private final Choreographer.FrameCallback flushCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flushScheduled = false;
+            refreshDefaults();
+        }
+    };
+
+    /** Schedules a refresh of the DEFAULT page when the default ringtone or vibration changed */
+    private final ContactsManager.OnContactsChangedListener changeListener =
+            new ContactsManager.OnContactsChangedListener() {
+        @Override
+        public void onContactsChanged(List<ContactChange> changes) {
+            for (ContactChange change : changes) {
+                if (change.type == ContactChange.DEFAULT_CHANGED)
+                    defaultVersion = Math.max(defaultVersion, change.version);
+            }
+            if (defaultVersion != refreshedDefaultVersion && !flushScheduled) {
+                flushScheduled = true;
+                Choreographer.getInstance().postFrameCallback(flushCallback);
+            }
+        }
+    };
+
     /** Sets tab names and context */
     public MainPagerAdapter(FragmentManager fragmentManager, Context ctx) {
         super(fragmentManager, FragmentPagerAdapter.BEHAVIOR_RESUME_ONLY_CURRENT_FRAGMENT);
@@ -49,32 +90,46 @@ public class MainPagerAdapter extends FragmentPagerAdapter {
                 ctx.getString(R.string.toolbar_default),
                 ctx.getString(R.string.toolbar_help)};
         context = ctx;
+        ContactsManager.addOnContactsChangedListener(changeListener);
     }
 
-    /** Called from outside this class and sets certain views dirty. Then notifies itself to
-     * update the view that is marked dirty.
-     * @param position The position of the view that should be updated.
-     */
-    public void setDirty(int position) {
-        dirtyPosition = position;
-        this.notifyDataSetChanged();
+    /** Stop listening to ContactsManager. Called when the owning activity is destroyed. */
+    public void release() {
+        ContactsManager.removeOnContactsChangedListener(changeListener);
+        if (flushScheduled) Choreographer.getInstance().removeFrameCallback(flushCallback);
+        flushScheduled = false;
     }
 
-    /** Called when notifyDataSetChanged() gets called. Loops through all vies and checks if it is
-     * dirty. Then updates the view if it is dirty. Returning POSITION_UNCHANGED stops from force
-     * redrawing the fragment, since we just want to update some of it.
+    /** Refresh the DEFAULT page if the defaults changed since it was last refreshed. If it is not
+     * instantiated, it reads fresh data when its views get created. */
+    private void refreshDefaults() {
+        if (refreshedDefaultVersion == defaultVersion) return;
+        Fragment item = fragments[POSITION_DEFAULT_FRAG];
+        if (item instanceof DefaultFragment) ((DefaultFragment) item).refreshDefaults(context);
+        refreshedDefaultVersion = defaultVersion;
+    }
+
+    /** Keeps track of the instantiated fragment so it can be refreshed directly */
+    @Override
+    @NonNull public Object instantiateItem(@NonNull ViewGroup container, int position) {
+        Fragment fragment = (Fragment) super.instantiateItem(container, position);
+        fragments[position] = fragment;
+        return fragment;
+    }
+
+    /** Forgets the fragment once the pager destroyed it */
+    @Override
+    public void destroyItem(@NonNull ViewGroup container, int position, @NonNull Object object) {
+        fragments[position] = null;
+        super.destroyItem(container, position, object);
+    }
+
+    /** Pages are refreshed in place, so they never change position. Returning POSITION_UNCHANGED
+     * stops from force redrawing the fragment.
      * @param item The current fragment under consideration
      */
     @Override
     public int getItemPosition(@NonNull Object item) {
-        if (dirtyPosition == 0 && item instanceof ContactsFragment) {
-            ((ContactsFragment) item).populateScrollView();
-            dirtyPosition = -1;
-        }
-        else if (dirtyPosition == 1 && item instanceof DefaultFragment) {
-            ((DefaultFragment) item).refreshDefaults(context);
-            dirtyPosition = -1;
-        }
         return POSITION_UNCHANGED;
     }
 
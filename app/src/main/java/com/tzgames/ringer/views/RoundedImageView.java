@@ -2,21 +2,32 @@ package com.tzgames.ringer.views;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
-import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
+import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 
 /**
  * An image view that has rounded edges (circle). Used to display custom contact profile pics.
+ * The bitmap is drawn through a BitmapShader that is built once per (bitmap, size) and reused
+ * until the drawable or the view bounds change, so drawing does not allocate.
  */
 public class RoundedImageView extends androidx.appcompat.widget.AppCompatImageView {
-    private final Paint objPaint = new Paint();
+    private final Paint objPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG
+            | Paint.DITHER_FLAG);
+
+    /** Maps the bitmap onto the view. Reused for every shader */
+    private final Matrix shaderMatrix = new Matrix();
+
+    /** The bitmap the current shader was built for. Null if there is no shader */
+    private Bitmap shaderBitmap = null;
+
+    /** The view width the current shader was built for */
+    private int shaderSize = 0;
 
     public RoundedImageView(Context context) {
         super(context);
@@ -30,6 +41,24 @@ public class RoundedImageView extends androidx.appcompat.widget.AppCompatImageVi
         super(context, attrs, defStyle);
     }
 
+    /**
+     * Drop the shader of the previous drawable. Also called by setImageBitmap.
+     */
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        super.setImageDrawable(drawable);
+        releaseShader();
+    }
+
+    /**
+     * Drop the shader since it was scaled for the old size.
+     */
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        releaseShader();
+    }
+
     /**
      * Draw cropped bitmap
      */
@@ -46,49 +75,43 @@ public class RoundedImageView extends androidx.appcompat.widget.AppCompatImageVi
             return;
         }
 
-        try {
-            Bitmap b = ((BitmapDrawable) drawable).getBitmap();
-            Bitmap bitmap = b.copy(Bitmap.Config.ARGB_8888, true);
-
-            int w = getWidth();
-
-            Bitmap roundBitmap = getCroppedBitmap(bitmap, w);
-            objPaint.setAntiAlias(true);
-            objPaint.setDither(true);
-            canvas.drawBitmap(roundBitmap, 0, 0, objPaint);
-        } catch (Exception e) {
+        if (!(drawable instanceof BitmapDrawable)) {
             // not a bitmap, probably a vector
             super.onDraw(canvas);
+            return;
         }
 
+        Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        int w = getWidth();
+        if (bitmap == null) return;
+        if (bitmap != shaderBitmap || w != shaderSize) buildShader(bitmap, w);
+
+        float radius = w / 2.0f;
+        canvas.drawCircle(radius, radius, radius, objPaint);
+    }
+
+    /**
+     * Create the shader that scales the bitmap to a size x size square, centered and cropped.
+     */
+    private void buildShader(Bitmap bitmap, int size) {
+        BitmapShader shader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        float scale = (float) size / Math.min(bitmap.getWidth(), bitmap.getHeight());
+        shaderMatrix.setScale(scale, scale);
+        shaderMatrix.postTranslate((size - bitmap.getWidth() * scale) / 2f,
+                (size - bitmap.getHeight() * scale) / 2f);
+        shader.setLocalMatrix(shaderMatrix);
+        objPaint.setShader(shader);
+        shaderBitmap = bitmap;
+        shaderSize = size;
     }
 
     /**
-     * Crop Bitmap
+     * Forget the current shader so that the next draw builds a new one.
      */
-    private static Bitmap getCroppedBitmap(Bitmap bmp, int radius) {
-        Bitmap sbmp;
-        if (bmp.getWidth() != radius || bmp.getHeight() != radius)
-            sbmp = Bitmap.createScaledBitmap(bmp, radius, radius, false);
-        else
-            sbmp = bmp;
-        Bitmap output = Bitmap.createBitmap(sbmp.getWidth(), sbmp.getHeight(),
-                Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(output);
-
-        final Paint paint = new Paint();
-        final Rect rect = new Rect(0, 0, sbmp.getWidth(), sbmp.getHeight());
-
-        paint.setAntiAlias(true);
-        paint.setFilterBitmap(true);
-        paint.setDither(true);
-        canvas.drawARGB(0, 0, 0, 0);
-        paint.setColor(Color.parseColor("#BAB399"));
-        canvas.drawCircle(sbmp.getWidth() / 2.0f + 0.7f,
-                sbmp.getHeight() / 2.0f + 0.7f, sbmp.getWidth() / 2.0f + 0.1f, paint);
-        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
-        canvas.drawBitmap(sbmp, rect, rect, paint);
-
-        return output;
+    private void releaseShader() {
+        // objPaint is null while the super constructor sets the initial drawable
+        if (objPaint != null) objPaint.setShader(null);
+        shaderBitmap = null;
+        shaderSize = 0;
     }
 }